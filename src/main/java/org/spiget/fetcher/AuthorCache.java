@@ -0,0 +1,57 @@
+package org.spiget.fetcher;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.spiget.data.author.ListedAuthor;
+import org.spiget.fetcher.database.Documents;
+import org.spiget.fetcher.util.IntLruSet;
+
+/**
+ * Ids of authors which are known to be stored, shared by everything that inserts authors on the side (e.g. review authors)
+ */
+@Log4j2
+class AuthorCache {
+
+    final IntLruSet authors;
+
+    AuthorCache(int capacity) {
+        this.authors = new IntLruSet(capacity);
+    }
+
+    /**
+     * Loads the ids of the most recently registered authors
+     */
+    void warm(MongoDatabase database) {
+        long start = System.currentTimeMillis();
+        for (Document document : database.getCollection(Documents.AUTHORS)
+                .find()
+                .projection(Projections.include("_id"))
+                .sort(Sorts.descending("_id"))
+                .limit(authors.capacity())
+                .batchSize(10000)) {
+            authors.add(document.get("_id", Number.class).intValue());
+        }
+        log.info("Loaded " + authors.size() + " known authors (" + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    boolean isKnown(int id) {
+        return authors.contains(id);
+    }
+
+    void add(int id) {
+        authors.add(id);
+    }
+
+    /**
+     * Inserts the author if it isn't stored yet, without overwriting existing data
+     */
+    void insertIfAbsent(ListedAuthor author) {
+        if (authors.add(author.getId())) {
+            SpigetFetcher.writeBuffer.insertAuthorIfAbsent(author);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package org.spiget.fetcher;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.spiget.client.json.JsonClient;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+import static org.spiget.fetcher.SpigetFetcher.databaseClient;
+
+/**
+ * Purges URLs from the Cloudflare cache.
+ * <p>
+ * URLs are sent in chunks of <code>cf.purge.chunkSize</code> (the API's per-request limit),
+ * concurrently but within the rate limit of the API host. Chunks which still fail after their retries are kept for the next purge,
+ * and are stored in the status, so they aren't lost when the process exits first.
+ */
+@Log4j2
+class CloudflarePurger {
+
+    static final String FAILED_KEY = "fetch.purge.failed";
+
+    final String url   = "https://api.cloudflare.com/client/v4/zones/" + config.get("cf.zone").getAsString() + "/purge_cache";
+    final String token = config.get("cf.token").getAsString();
+
+    final int  chunkSize  = config.get("cf.purge.chunkSize").getAsInt();
+    final int  retries    = config.get("cf.purge.retries").getAsInt();
+    final long retryDelay = config.get("cf.purge.retryDelay").getAsLong();
+
+    final int             threads     = config.get("cf.purge.threads").getAsInt();
+    final ExecutorService executor    = Executors.newFixedThreadPool(threads, new NamedThreadFactory("cf-purge", true));
+    final int             maxInFlight = threads * 2;
+
+    // URLs of failed chunks
+    final Set<String> failed = new LinkedHashSet<>();
+
+    /**
+     * Purges the URLs and waits until all chunks are done.
+     * Only a few chunks are in flight at a time, so the URLs can be generated while they're consumed.
+     *
+     * @return the amount of URLs which couldn't be purged
+     */
+    int purge(Iterator<String> urls) {
+        Set<String> retry;
+        synchronized (failed) {
+            retry = new LinkedHashSet<>(failed);
+            failed.clear();
+        }
+        // Failed URLs which are purged again anyway are only sent once
+        Iterator<String> files = retry.isEmpty() ? urls : Stream.concat(retry.stream(), StreamSupport.stream(Spliterators.spliteratorUnknownSize(urls, Spliterator.ORDERED), false)
+                .filter(file -> !retry.contains(file))).iterator();
+        if (!files.hasNext()) {
+            return 0;
+        }
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int count = 0;
+        while (files.hasNext()) {
+            List<String> chunk = new ArrayList<>(chunkSize);
+            while (files.hasNext() && chunk.size() < chunkSize) {
+                chunk.add(files.next());
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // Keep what's left for the next purge
+                synchronized (failed) {
+                    failed.addAll(chunk);
+                    files.forEachRemaining(failed::add);
+                }
+                break;
+            }
+            count += chunk.size();
+
+            futures.add(CompletableFuture.runAsync(() -> {
+                if (!purgeChunk(chunk)) {
+                    synchronized (failed) {
+                        failed.addAll(chunk);
+                    }
+                }
+            }, executor).whenComplete((v, e) -> inFlight.release()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        log.info("Purged " + count + " URLs in " + futures.size() + " chunks");
+
+        synchronized (failed) {
+            if (!failed.isEmpty()) {
+                log.warn(failed.size() + " URLs couldn't be purged, retrying with the next purge");
+            }
+            if (!failed.isEmpty() || !retry.isEmpty()) {
+                saveFailed();
+            }
+            return failed.size();
+        }
+    }
+
+    int getFailedCount() {
+        synchronized (failed) {
+            return failed.size();
+        }
+    }
+
+    /**
+     * Picks up the URLs a previous process couldn't purge
+     */
+    void loadFailed() {
+        try {
+            Object value = databaseClient.getStatus(FAILED_KEY, "");
+            if (!(value instanceof String) || ((String) value).isEmpty()) {
+                return;
+            }
+            String[] urls = JsonClient.gson.fromJson((String) value, String[].class);
+            synchronized (failed) {
+                failed.addAll(Arrays.asList(urls));
+            }
+            log.info("Loaded " + urls.length + " URLs which couldn't be purged before");
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to load failed purge URLs", e);
+        }
+    }
+
+    void saveFailed() {
+        try {
+            synchronized (failed) {
+                databaseClient.updateStatus(FAILED_KEY, failed.isEmpty() ? "" : JsonClient.gson.toJson(failed));
+            }
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to save failed purge URLs", e);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the chunk should be sent again with the next purge
+     */
+    boolean purgeChunk(List<String> files) {
+        JsonArray array = new JsonArray();
+        files.forEach(array::add);
+        JsonObject body = new JsonObject();
+        body.add("files", array);
+        String requestBody = JsonClient.gson.toJson(body);
+
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            try {
+                if (attempt > 0) {
+                    Thread.sleep(retryDelay << (attempt - 1));
+                }
+                Requests.acquire(url);
+                Connection.Response response = Jsoup.connect(url)
+                        .header("Content-Type", "application/json")
+                        .header("Authorization", "Bearer " + token)
+                        .requestBody(requestBody)
+                        .method(Connection.Method.POST)
+                        .ignoreContentType(true)
+                        .ignoreHttpErrors(true)
+                        .execute();
+                Requests.onResponse(url, response.statusCode(), response.header("Retry-After"));
+                log.log(Level.INFO, "CF purge " + response.statusCode() + " " + response.statusMessage() + " (" + files.size() + " URLs)");
+                if (response.statusCode() == 200) {
+                    return true;
+                }
+                log.warn(response.body());
+                if (response.statusCode() < 500 && response.statusCode() != 429) {
+                    // Won't get any better by trying again, drop the chunk
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                Sentry.captureException(e);
+                log.log(Level.WARN, "Failed to invalidate cloudflare cache", e);
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.spiget.fetcher;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.spiget.client.json.JsonClient;
+import org.spiget.fetcher.database.PendingPurges;
+
+import static org.spiget.fetcher.SpigetFetcher.databaseClient;
+
+/**
+ * Durable progress of the resource list crawl, stored in the status collection.
+ * <p>
+ * A checkpoint is only written after all data up to it has been flushed, so resuming from it never skips unwritten items.
+ * It only holds the position, the resources which still need a cache purge are stored separately by {@link PendingPurges}.
+ */
+@Log4j2
+class CrawlCheckpoint {
+
+    static final String KEY = "fetch.checkpoint";
+
+    long    time;
+    int     pageAmount;
+    boolean inverted;
+    // Last page & item which have been written completely
+    int     page;
+    int     item;
+    // Whether the whole list has been crawled, only the remaining phases are left
+    boolean complete;
+
+    /**
+     * @return the stored checkpoint, or <code>null</code> if there is none or it doesn't fit the current crawl
+     */
+    static CrawlCheckpoint load(int pageAmount, boolean inverted, long maxAge) {
+        try {
+            Object value = databaseClient.getStatus(KEY, "");
+            if (!(value instanceof String) || ((String) value).isEmpty()) {
+                return null;
+            }
+            CrawlCheckpoint checkpoint = JsonClient.gson.fromJson((String) value, CrawlCheckpoint.class);
+            if (checkpoint.pageAmount != pageAmount || checkpoint.inverted != inverted) {
+                log.info("Ignoring checkpoint of a crawl with different settings");
+                return null;
+            }
+            if (System.currentTimeMillis() - checkpoint.time > maxAge) {
+                log.info("Ignoring outdated checkpoint");
+                return null;
+            }
+            return checkpoint;
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to load crawl checkpoint", e);
+            return null;
+        }
+    }
+
+    static void save(int pageAmount, boolean inverted, int page, int item, boolean complete) {
+        CrawlCheckpoint checkpoint = new CrawlCheckpoint();
+        checkpoint.time = System.currentTimeMillis();
+        checkpoint.pageAmount = pageAmount;
+        checkpoint.inverted = inverted;
+        checkpoint.page = page;
+        checkpoint.item = item;
+        checkpoint.complete = complete;
+        try {
+            databaseClient.updateStatus(KEY, JsonClient.gson.toJson(checkpoint));
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to save crawl checkpoint", e);
+        }
+    }
+
+    static void clear() {
+        try {
+            databaseClient.updateStatus(KEY, "");
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to clear crawl checkpoint", e);
+        }
+    }
+
+    /**
+     * @return whether the item has already been handled before the checkpoint was written
+     */
+    boolean isDone(int page, int item) {
+        return complete || page < this.page || (page == this.page && item <= this.item);
+    }
+
+}
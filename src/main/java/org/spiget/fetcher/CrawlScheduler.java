@@ -0,0 +1,218 @@
+package org.spiget.fetcher;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.fetcher.database.Documents;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+
+/**
+ * Decides which resources get their pages refreshed, based on how often they changed so far.
+ * <p>
+ * Resources whose list entry shows a new update, version or rating are always refreshed. Changes of only the download count are
+ * deferred, unless the resource is one of the <code>fetch.priority.refreshSize</code> resources with the highest priority.
+ * The priority is the amount of changes expected since the last refresh, weighted by the download velocity, so it keeps growing
+ * until the resource is refreshed and even dormant resources are picked up eventually.
+ * <p>
+ * Deferring implies skipping, so while the scheduler is enabled, unchanged resources are skipped regardless of <code>fetch.resources.skipUnchanged</code>.
+ * Planned resources which don't show up on the crawled listing pages are refreshed through update requests instead, see {@link #requestUnvisited}.
+ */
+@Log4j2
+class CrawlScheduler {
+
+    static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    final int    refreshSize    = config.get("fetch.priority.refreshSize").getAsInt();
+    // Lower bound of the change interval, so a burst of updates doesn't make a resource hot forever
+    final long   minInterval    = config.get("fetch.priority.minInterval").getAsLong();
+    final double downloadWeight = config.get("fetch.priority.downloadWeight").getAsDouble();
+    // Weight of the latest observation in the moving averages
+    final double smoothing      = config.get("fetch.priority.smoothing").getAsDouble();
+
+    final Map<Integer, Stats> stats = new ConcurrentHashMap<>();
+
+    // Ids to refresh in the current cycle, replaced as a whole by plan()
+    volatile BitSet refreshSet = new BitSet();
+    volatile long   plannedAt;
+
+    /**
+     * Derives the initial statistics from the stored resources
+     */
+    void warm(MongoDatabase database) {
+        long start = System.currentTimeMillis();
+        for (Document document : database.getCollection(Documents.RESOURCES)
+                .find()
+                .projection(Projections.include("updateDate", "releaseDate", "downloads"))
+                .batchSize(10000)) {
+            Stats stats = new Stats(document.get("_id", Number.class).intValue(),
+                    number(document, "releaseDate"),
+                    number(document, "updateDate"),
+                    (int) number(document, "downloads"),
+                    start);
+            this.stats.put(stats.id, stats);
+        }
+        log.info("Loaded change statistics of " + stats.size() + " resources (" + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    /**
+     * Picks the resources to refresh in the next cycle
+     */
+    void plan() {
+        long now = System.currentTimeMillis();
+        // Min-heap of the best resources so far
+        PriorityQueue<Stats> top = new PriorityQueue<>(refreshSize + 1, Comparator.comparingDouble(stats -> stats.planned));
+        for (Stats stats : this.stats.values()) {
+            stats.planned = priority(stats, now);
+            if (top.size() < refreshSize) {
+                top.add(stats);
+            } else if (refreshSize > 0 && stats.planned > top.peek().planned) {
+                top.poll();
+                top.add(stats);
+            }
+        }
+        BitSet refreshSet = new BitSet();
+        for (Stats stats : top) {
+            refreshSet.set(stats.id);
+        }
+        this.refreshSet = refreshSet;
+        this.plannedAt = now;
+        log.info("Planned refresh of " + refreshSet.cardinality() + " resources" + (top.isEmpty() ? "" : String.format(" (priority >= %.2f)", top.peek().planned)));
+    }
+
+    double priority(Stats stats, long now) {
+        synchronized (stats) {
+            double expectedChanges = (double) (now - stats.lastRefreshed) / stats.changeInterval;
+            return expectedChanges * (1 + downloadWeight * Math.log1p(stats.downloadVelocity));
+        }
+    }
+
+    boolean shouldRefresh(int id) {
+        return refreshSet.get(id);
+    }
+
+    /**
+     * Updates the statistics with the values shown on the resource list
+     */
+    void observe(ListedResource resource) {
+        long now = System.currentTimeMillis();
+        Stats stats = this.stats.computeIfAbsent(resource.getId(), id -> new Stats(id, resource.getReleaseDate(), resource.getUpdateDate(), resource.getDownloads(), now));
+        synchronized (stats) {
+            stats.observed = now;
+            if (resource.getUpdateDate() > stats.updateDate) {
+                long interval = TimeUnit.SECONDS.toMillis(resource.getUpdateDate() - stats.updateDate);
+                stats.changeInterval = Math.max(minInterval, (long) average(stats.changeInterval, interval));
+                stats.updateDate = resource.getUpdateDate();
+            }
+            long elapsed = now - stats.downloadsSeen;
+            if (resource.getDownloads() != stats.downloads && elapsed > 0) {
+                double velocity = Math.max(0, resource.getDownloads() - stats.downloads) * (double) DAY / elapsed;
+                stats.downloadVelocity = average(stats.downloadVelocity, velocity);
+                stats.downloads = resource.getDownloads();
+                stats.downloadsSeen = now;
+            }
+        }
+    }
+
+    void onRefreshed(int id) {
+        Stats stats = this.stats.get(id);
+        if (stats != null) {
+            synchronized (stats) {
+                stats.lastRefreshed = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Creates update requests for the planned resources which weren't on the listing pages crawled since the plan,
+     * e.g. dormant resources far down the list
+     *
+     * @return the amount of resources requested
+     */
+    int requestUnvisited(MongoDatabase database, boolean versions, boolean updates, boolean reviews) {
+        long plannedAt = this.plannedAt;
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        refreshSet.stream().forEach(id -> {
+            Stats stats = this.stats.get(id);
+            if (stats == null) {
+                return;
+            }
+            synchronized (stats) {
+                if (stats.observed >= plannedAt) {
+                    return;
+                }
+            }
+            // Doesn't replace a request which is already waiting
+            writes.add(new UpdateOneModel<>(Filters.eq("requestedId", id), Updates.combine(
+                    Updates.setOnInsert("versions", versions),
+                    Updates.setOnInsert("updates", updates),
+                    Updates.setOnInsert("reviews", reviews),
+                    Updates.setOnInsert("delete", false)), new UpdateOptions().upsert(true)));
+        });
+        if (!writes.isEmpty()) {
+            database.getCollection(Documents.UPDATE_REQUESTS).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+        return writes.size();
+    }
+
+    double average(double current, double value) {
+        return current + smoothing * (value - current);
+    }
+
+    static long number(Document document, String key) {
+        Number number = document.get(key, Number.class);
+        return number == null ? 0 : number.longValue();
+    }
+
+    class Stats {
+
+        final int id;
+        // Seconds, like the resource's update date
+        long   updateDate;
+        // Average millis between two updates
+        long   changeInterval;
+        int    downloads;
+        long   downloadsSeen;
+        // When the resource was last on a crawled listing page
+        long   observed;
+        // Average downloads per day
+        double downloadVelocity;
+        long   lastRefreshed;
+
+        // Priority at the time of the last plan
+        double planned;
+
+        Stats(int id, long releaseDate, long updateDate, int downloads, long now) {
+            this.id = id;
+            this.updateDate = updateDate;
+            long lastChanged = TimeUnit.SECONDS.toMillis(updateDate > 0 ? updateDate : releaseDate);
+            long age = releaseDate > 0 ? now - TimeUnit.SECONDS.toMillis(releaseDate) : 0;
+            // Without a history, the time between the release and the last update is the best guess
+            this.changeInterval = Math.max(minInterval, updateDate > releaseDate && releaseDate > 0 ? TimeUnit.SECONDS.toMillis(updateDate - releaseDate) : age);
+            this.downloads = downloads;
+            this.downloadsSeen = now;
+            this.downloadVelocity = age > 0 ? downloads * (double) DAY / Math.max(DAY, age) : 0;
+            // The resource was fetched when it last changed at the latest
+            this.lastRefreshed = lastChanged > 0 ? Math.min(now, lastChanged) : now;
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.spiget.fetcher;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+
+/**
+ * Runs the resource list crawl, the latest review sweep and the update requests as independent periodic jobs in a single long-running process.
+ * <p>
+ * Every job is scheduled with a fixed delay between runs, so a job never overlaps with itself, while different jobs can run at the same time.
+ */
+@Log4j2
+class FetcherDaemon {
+
+    final SpigetFetcher fetcher;
+
+    final long resourcesInterval      = config.get("daemon.interval.resources").getAsLong();
+    final long latestReviewsInterval  = config.get("daemon.interval.latestReviews").getAsLong();
+    final long updateRequestsInterval = config.get("daemon.interval.updateRequests").getAsLong();
+    final long shutdownTimeout        = config.get("daemon.shutdownTimeout").getAsLong();
+
+    final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3, new NamedThreadFactory("daemon", false));
+
+    FetcherDaemon(SpigetFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    void start() {
+        schedule("resources", resourcesInterval, () -> {
+            long start = fetcher.startRun();
+            fetcher.fetchResources();
+            fetcher.finishCycle();
+            CrawlCheckpoint.clear();
+            fetcher.endRun(start);
+        });
+        schedule("latest reviews", latestReviewsInterval, fetcher::fetchLatestReviews);
+        schedule("update requests", updateRequestsInterval, () -> {
+            fetcher.fetchUpdateRequests(null);
+            fetcher.finishCycle();
+        });
+    }
+
+    void schedule(String name, long interval, Runnable job) {
+        log.info("Scheduling " + name + " job every " + (interval / 1000) + "s");
+        scheduler.scheduleWithFixedDelay(() -> {
+            long start = System.currentTimeMillis();
+            log.info("Running " + name + " job");
+            try {
+                job.run();
+            } catch (Throwable throwable) {
+                // Don't let the exception cancel all further runs
+                Sentry.captureException(throwable);
+                log.log(Level.ERROR, "Unexpected exception in " + name + " job", throwable);
+            }
+            log.info("Finished " + name + " job in " + (System.currentTimeMillis() - start) + "ms");
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops scheduling new runs and waits for the running jobs to finish, interrupting them after <code>daemon.shutdownTimeout</code>
+     */
+    void stop() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                log.warn("Jobs didn't finish within " + shutdownTimeout + "ms, interrupting");
+                scheduler.shutdownNow();
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
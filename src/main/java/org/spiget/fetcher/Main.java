@@ -1,12 +1,18 @@
 package org.spiget.fetcher;
 
+import java.util.Arrays;
+
 public class Main {
 
     public static void main(String... args) throws Exception {
         System.out.println("Hello World!");
         SpigetFetcher spigetFetcher = new SpigetFetcher();
         spigetFetcher.init();
-        spigetFetcher.fetch();
+        if (Arrays.asList(args).contains("--daemon") || SpigetFetcher.config.get("daemon.enabled").getAsBoolean()) {
+            spigetFetcher.runDaemon();
+        } else {
+            spigetFetcher.fetch();
+        }
         //		spigetFetcher.patchVersions();
     }
 
@@ -0,0 +1,103 @@
+package org.spiget.fetcher;
+
+import org.influxdb.dto.Point;
+import org.jsoup.nodes.Document;
+import org.spiget.client.Paginator;
+import org.spiget.client.SpigetClient;
+import org.spiget.client.SpigetDownload;
+import org.spiget.client.SpigetResponse;
+import org.spiget.client.json.JsonClient;
+import org.spiget.client.json.JsonResponse;
+import org.spiget.fetcher.ratelimit.HostRateLimiter;
+import org.spiget.fetcher.ratelimit.TokenBucket;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Entry point for all upstream requests made by the fetcher.
+ * <p>
+ * Every request has to pass the shared {@link HostRateLimiter} first, which keeps a separate budget per host and adapts it to 429 responses.
+ */
+public class Requests {
+
+    static HostRateLimiter rateLimiter;
+
+    private Requests() {
+    }
+
+    public static SpigetResponse get(String url) throws IOException, InterruptedException {
+        rateLimiter.acquire(url);
+        SpigetResponse response = SpigetClient.get(url);
+        rateLimiter.onResponse(url, response.getCode(), -1);
+        return response;
+    }
+
+    public static SpigetDownload download(String url) throws IOException, InterruptedException {
+        rateLimiter.acquire(url);
+        return SpigetClient.download(url);
+    }
+
+    public static JsonResponse getJson(String url) throws IOException, InterruptedException {
+        rateLimiter.acquire(url);
+        JsonResponse response = JsonClient.get(url);
+        if (response != null) {
+            rateLimiter.onResponse(url, response.code, -1);
+        }
+        return response;
+    }
+
+    /**
+     * Wraps the paginator, so the page requests are subject to the same budget
+     */
+    public static Iterable<Document> pages(Paginator paginator) {
+        return () -> {
+            Iterator<Document> iterator = paginator.iterator();
+            return new Iterator<Document>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Document next() {
+                    try {
+                        rateLimiter.acquire(SpigetClient.BASE_URL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                    return iterator.next();
+                }
+            };
+        };
+    }
+
+    /**
+     * Blocks until the budget of the url's host allows another request, for requests which aren't made through this class
+     */
+    public static void acquire(String url) throws InterruptedException {
+        rateLimiter.acquire(url);
+    }
+
+    /**
+     * Reports the result of a request which wasn't made through this class
+     *
+     * @param retryAfter value of the Retry-After header
+     */
+    public static void onResponse(String url, int code, String retryAfter) {
+        rateLimiter.onResponse(url, code, HostRateLimiter.parseRetryAfter(retryAfter));
+    }
+
+    static void writeMetrics() {
+        for (Map.Entry<String, TokenBucket> entry : rateLimiter.getBuckets().entrySet()) {
+            SpigetFetcher.metrics.write(Point
+                    .measurement("request_rate")
+                    .tag("host", entry.getKey())
+                    .addField("rate", entry.getValue().getRate())
+                    .build());
+        }
+    }
+
+}
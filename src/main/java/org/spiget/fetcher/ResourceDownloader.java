@@ -0,0 +1,189 @@
+package org.spiget.fetcher;
+
+import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
+import com.backblaze.b2.client.contentSources.B2FileContentSource;
+import com.backblaze.b2.client.exceptions.B2NotFoundException;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.NotNull;
+import org.spiget.client.SpigetClient;
+import org.spiget.client.SpigetDownload;
+import org.spiget.data.resource.Resource;
+import org.spiget.fetcher.database.FileHashStore;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.spiget.fetcher.SpigetFetcher.b2Client;
+import static org.spiget.fetcher.SpigetFetcher.config;
+
+/**
+ * Downloads resource files and uploads them to B2 on a separate, bounded pool.
+ * <p>
+ * Files are hashed while they're downloaded and kept in memory up to <code>fetch.download.memoryThreshold</code>,
+ * only larger ones are spilled to a temporary file, which is deleted as soon as the upload is done.
+ * <p>
+ * Files whose hash & size match the last upload are neither uploaded again nor purged from the CDN.
+ */
+@Log4j2
+class ResourceDownloader {
+
+    final SpigetFetcher fetcher;
+
+    final String bucket             = config.get("b2.bucket").getAsString();
+    final int    memoryThreshold    = config.get("fetch.download.memoryThreshold").getAsInt();
+    final long   largeFileThreshold = config.get("fetch.download.largeFileThreshold").getAsLong();
+    // How often to check that an unchanged file still exists in B2
+    final long   verifyInterval     = config.get("fetch.download.verifyInterval").getAsLong();
+
+    final FileHashStore fileHashes = new FileHashStore(SpigetFetcher.databaseClient.db());
+
+    final ExecutorService executor;
+    // Uploads the parts of large files
+    final ExecutorService uploadExecutor = Executors.newFixedThreadPool(config.get("b2.uploadThreads").getAsInt(), new NamedThreadFactory("b2-upload", true));
+
+    final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+    ResourceDownloader(SpigetFetcher fetcher) {
+        this.fetcher = fetcher;
+        int threads = config.get("fetch.download.threads").getAsInt();
+        // When the queue is full, the submitting worker has to download the file itself
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.get("fetch.download.queueSize").getAsInt()),
+                new NamedThreadFactory("download", true),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    void submit(@NotNull Resource resource) {
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> download(resource), executor);
+        pending.add(future);
+        future.whenComplete((v, e) -> pending.remove(future));
+    }
+
+    /**
+     * Waits for all submitted downloads to finish
+     */
+    void await() {
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+    }
+
+    void download(@NotNull Resource resource) {
+        SpigetFetcher.status.setState("download");
+        String name = "" + resource.getId() + resource.getFile().getType();
+        log.info("Downloading #" + resource.getId());
+
+        File spillFile = null;
+        try {
+            SpigetDownload download = Requests.download(SpigetClient.BASE_URL + resource.getFile().getUrl());
+            if (!download.isAvailable()) {
+                log.warn("Download is not available (probably blocked by CloudFlare)");
+                return;
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+            OutputStream out = buffer;
+            long size = 0;
+            try (InputStream in = new DigestInputStream(download.getInputStream(), digest)) {
+                byte[] chunk = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    if (spillFile == null && size + read > memoryThreshold) {
+                        spillFile = File.createTempFile("resource", name);
+                        out = new BufferedOutputStream(new FileOutputStream(spillFile));
+                        buffer.writeTo(out);
+                        buffer = null;
+                    }
+                    out.write(chunk, 0, read);
+                    size += read;
+                }
+            } finally {
+                out.close();
+            }
+            String sha1 = String.format("%040x", new BigInteger(1, digest.digest()));
+            log.info("Downloaded #" + resource.getId() + " (" + size + " bytes, sha1 " + sha1 + ")");
+
+            if (b2Client != null) {
+                if (isUnchanged(name, sha1, size)) {
+                    log.info(name + " is unchanged, skipping upload");
+                    return;
+                }
+                B2ContentSource source = spillFile != null
+                        ? B2FileContentSource.builder(spillFile).setSha1(sha1).build()
+                        : B2ByteArrayContentSource.builder(buffer.toByteArray()).setSha1OrNull(sha1).build();
+                B2FileVersion fileVersion = upload(name, source, size);
+                if (fileVersion != null) {
+                    fileHashes.put(name, sha1, size, fileVersion.getFileId());
+                }
+            }
+            fetcher.markDownloaded(resource.getFile().getType(), resource.getId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Sentry.captureException(e);
+            log.warn("Download for resource #" + resource.getId() + " failed", e);
+        } finally {
+            if (spillFile != null && !spillFile.delete()) {
+                log.warn("Failed to delete " + spillFile);
+            }
+        }
+    }
+
+    /**
+     * @return whether the same content has already been uploaded and is still in B2
+     */
+    boolean isUnchanged(String name, String sha1, long size) {
+        try {
+            FileHashStore.StoredFile stored = fileHashes.get(name);
+            if (stored == null || !stored.matches(sha1, size)) {
+                return false;
+            }
+            if (System.currentTimeMillis() - stored.verified < verifyInterval) {
+                return true;
+            }
+            B2FileVersion fileVersion = b2Client.getFileInfo(stored.fileId);
+            // Large files only have the hash we passed in their info
+            String b2Sha1 = fileVersion.getFileInfo() != null && fileVersion.getFileInfo().containsKey("large_file_sha1")
+                    ? fileVersion.getFileInfo().get("large_file_sha1")
+                    : fileVersion.getContentSha1();
+            if (fileVersion.getContentLength() != size || !sha1.equals(b2Sha1)) {
+                return false;
+            }
+            fileHashes.setVerified(name);
+            return true;
+        } catch (B2NotFoundException e) {
+            return false;
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to check stored file " + name, e);
+            return false;
+        }
+    }
+
+    B2FileVersion upload(String name, B2ContentSource source, long size) {
+        try {
+            log.info("Uploading " + name + " to B2...");
+            B2UploadFileRequest request = B2UploadFileRequest.builder(bucket, name, B2ContentTypes.B2_AUTO, source).build();
+            B2FileVersion fileVersion = size >= largeFileThreshold
+                    ? b2Client.uploadLargeFile(request, uploadExecutor)
+                    : b2Client.uploadSmallFile(request);
+            log.info(fileVersion);
+            return fileVersion;
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to upload " + name + " to B2", e);
+            return null;
+        }
+    }
+
+}
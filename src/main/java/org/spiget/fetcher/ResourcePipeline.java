@@ -0,0 +1,523 @@
+package org.spiget.fetcher;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.spiget.client.HtmlUnitClient;
+import org.spiget.client.Paginator;
+import org.spiget.client.SpigetClient;
+import org.spiget.data.UpdateRequest;
+import org.spiget.data.author.Author;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.data.resource.Resource;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.webhook.event.author.NewAuthorEvent;
+import org.spiget.data.webhook.event.resource.NewResourceEvent;
+import org.spiget.data.webhook.event.resource.ResourceUpdateEvent;
+import org.spiget.parser.ResourceListItemParser;
+import org.spiget.fetcher.database.PageSnapshot;
+import org.spiget.fetcher.database.PageSnapshot.KnownResource;
+import org.spiget.fetcher.util.NamedThreadFactory;
+import org.spiget.parser.ResourcePageParser;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+import static org.spiget.fetcher.SpigetFetcher.databaseClient;
+
+/**
+ * Staged pipeline for the live resource list crawl.
+ * <p>
+ * Pages are fetched and split into items on the calling thread, resource details and extras are fetched by the worker pools
+ * and the results are persisted on the calling thread again, strictly in listing order.
+ * <p>
+ * Fetching an item already writes its versions, updates and reviews and downloads its file, so items are only fetched ahead
+ * as long as none of the items in flight is expected to trigger <code>stopOnExisting</code>. Once one is, the pipeline waits
+ * for it to be persisted before fetching anything past it, so the side effects are the same as in a sequential crawl.
+ */
+@Log4j2
+class ResourcePipeline {
+
+    final SpigetFetcher fetcher;
+
+    final int             queueSize       = config.get("fetch.pipeline.queueSize").getAsInt();
+    final ExecutorService detailExecutor  = Executors.newFixedThreadPool(config.get("fetch.pipeline.detailThreads").getAsInt(), new NamedThreadFactory("detail", false));
+    final ExecutorService extrasExecutor  = Executors.newFixedThreadPool(config.get("fetch.pipeline.extrasThreads").getAsInt(), new NamedThreadFactory("extras", false));
+
+    final boolean modeResources;
+    final boolean modeResourceVersions;
+    final boolean modeResourceUpdates;
+    final boolean modeResourceReviews;
+    final boolean modeResourceDocumentation;
+    final boolean skipUnchanged = config.get("fetch.resources.skipUnchanged").getAsBoolean();
+    final CrawlScheduler scheduler = SpigetFetcher.crawlScheduler;
+
+    // Items which are currently being fetched, in listing order
+    final Deque<Item> inFlight = new ArrayDeque<>();
+    // Authors which are known to exist, including the ones inserted during this crawl which might not be written yet
+    final Set<Integer>                 knownAuthors        = new HashSet<>();
+    // Resources written during this crawl, in case the listing shifts and they show up on another page again
+    final Map<Integer, KnownResource> committedResources = new HashMap<>();
+
+    volatile boolean stopped = false;
+    StopOnExisting   stopOnExisting;
+    // Same count, but already including the items in flight
+    StopOnExisting   predictedStop;
+    boolean          stopPredicted;
+    int              pagesSinceDispose;
+    int              newCount      = 0;
+    int              skippedCount  = 0;
+    int              lastPage      = 0;
+    int              lastItem      = 0;
+
+    final int checkpointInterval = config.get("fetch.checkpoint.items").getAsInt();
+    // Purge the cache of changed resources with every checkpoint instead of at the end of the cycle
+    final boolean purgeIncremental = config.get("cf.purge.incremental").getAsBoolean();
+    int       committedSinceCheckpoint;
+    // Disabled for sharded crawls, the leases keep track of the progress there
+    boolean   checkpointing = true;
+    int       pageAmount;
+    boolean   inverted;
+
+    ResourcePipeline(SpigetFetcher fetcher, boolean modeResources, boolean modeResourceVersions, boolean modeResourceUpdates, boolean modeResourceReviews, boolean modeResourceDocumentation) {
+        this.fetcher = fetcher;
+        this.modeResources = modeResources;
+        this.modeResourceVersions = modeResourceVersions;
+        this.modeResourceUpdates = modeResourceUpdates;
+        this.modeResourceReviews = modeResourceReviews;
+        this.modeResourceDocumentation = modeResourceDocumentation;
+    }
+
+    /**
+     * @param resume checkpoint of an interrupted crawl to continue from, or <code>null</code>
+     */
+    void run(Paginator resourceListPaginator, int pageAmount, int pageOffset, boolean inverted, int stopOnExisting, CrawlCheckpoint resume) {
+        this.pageAmount = pageAmount;
+        this.inverted = inverted;
+        this.stopOnExisting = StopOnExisting.forListing(stopOnExisting, inverted);
+        this.predictedStop = this.stopOnExisting.copy();
+        // When resuming, pages are requested directly, so the ones done before the checkpoint aren't fetched again
+        Iterator<Document> iterator = resume == null ? Requests.pages(resourceListPaginator).iterator() : null;
+        try {
+            for (int pageCounter = 1; pageCounter <= pageAmount && (iterator == null || iterator.hasNext()); pageCounter++) {
+                if (stopped || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                try {
+                    SpigetFetcher.status.setPage(pageCounter);
+                    // The paginator has to move on, even if the page is skipped
+                    Document document = iterator != null ? iterator.next() : null;
+                    if (pageCounter < pageOffset) {
+                        log.info("Skipping page #" + pageCounter + " (Offset: " + pageOffset + ")");
+                        continue;
+                    }
+                    if (resume != null && resume.isDone(pageCounter, Integer.MAX_VALUE)) {
+                        log.info("Skipping page #" + pageCounter + " (already done before the checkpoint)");
+                        continue;
+                    }
+                    log.info("Fetching page " + pageCounter + "/" + pageAmount);
+                    if (document == null) {
+                        int page = inverted ? pageAmount - pageCounter + 1 : pageCounter;
+                        document = Requests.get(SpigetClient.BASE_URL + "resources/?page=" + page).getDocument();
+                    }
+                    processPage(document, pageCounter, resume);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Throwable throwable) {
+                    Sentry.captureException(throwable);
+                    log.log(Level.ERROR, "Unexpected exception while parsing page #" + pageCounter, throwable);
+                }
+
+                afterPage(pageCounter);
+            }
+
+            drain();
+
+            if (!Thread.currentThread().isInterrupted()) {
+                fetcher.downloader.await();
+                SpigetFetcher.writeBuffer.flush();
+                CrawlCheckpoint.save(pageAmount, inverted, lastPage, lastItem, true);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Crawls a range of listing pages, requesting each page directly instead of walking the paginator from the start.
+     * Progress isn't checkpointed, the caller keeps track of finished ranges.
+     *
+     * @return whether all pages have been processed
+     */
+    boolean runPages(int from, int to) {
+        this.checkpointing = false;
+        this.stopOnExisting = StopOnExisting.forRange();
+        this.predictedStop = this.stopOnExisting.copy();
+        try {
+            for (int page = from; page <= to; page++) {
+                if (stopped || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                log.info("Fetching page " + page + " (" + from + "-" + to + ")");
+                try {
+                    SpigetFetcher.status.setPage(page);
+                    Document document = Requests.get(SpigetClient.BASE_URL + "resources/?page=" + page).getDocument();
+                    processPage(document, page, null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (Throwable throwable) {
+                    Sentry.captureException(throwable);
+                    log.log(Level.ERROR, "Unexpected exception while parsing page #" + page, throwable);
+                }
+
+                afterPage(page);
+            }
+
+            drain();
+            if (stopped || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            fetcher.downloader.await();
+            SpigetFetcher.writeBuffer.flush();
+            return true;
+        } finally {
+            close();
+        }
+    }
+
+    void processPage(Document document, int pageCounter, CrawlCheckpoint resume) throws IOException {
+        ResourceListItemParser resourceItemParser = new ResourceListItemParser();
+        Elements resourceListItems = document.select("li.resourceListItem");
+        if (resourceListItems.isEmpty()) {
+            log.warn("Page has " + resourceListItems.size() + " resource items");
+            log.info(document);
+            Discord.postMessage("⚠Resource page has no resource items!", config);
+        } else {
+            log.debug("Page has " + resourceListItems.size() + " resource items");
+        }
+        List<Item> items = new ArrayList<>();
+        int itemCounter = 0;
+        for (Element resourceListItem : resourceListItems) {
+            itemCounter++;
+            if (resume != null && resume.isDone(pageCounter, itemCounter)) {
+                continue;
+            }
+            try {
+                ListedResource listedResource = resourceItemParser.parse(resourceListItem);
+                if (listedResource != null) {
+                    items.add(new Item(pageCounter, itemCounter, listedResource));
+                }
+            } catch (Throwable throwable) {
+                Sentry.captureException(throwable);
+                log.error("Unexpected exception while parsing item #" + itemCounter + " on page " + pageCounter, throwable);
+            }
+        }
+        // Only the parsed items are needed from here on, so the page can be collected while they're fetched
+        resourceListItems.clear();
+        document.empty();
+
+        // Load the stored state of the whole page at once
+        PageSnapshot snapshot = PageSnapshot.load(databaseClient.db(), items.stream().map(item -> item.listedResource).collect(Collectors.toList()));
+        knownAuthors.addAll(snapshot.getAuthors());
+        snapshot.getAuthors().forEach(SpigetFetcher.authorCache::add);
+        for (Item item : items) {
+            if (stopped) {
+                break;
+            }
+            item.databaseResource = snapshot.getResource(item.listedResource.getId());
+            if (scheduler != null) {
+                scheduler.observe(item.listedResource);
+            }
+            submit(item);
+        }
+    }
+
+    void afterPage(int pageCounter) {
+        Requests.writeMetrics();
+
+        if (++pagesSinceDispose >= 2) {
+            // The client is shared with the workers and the downloads, so everything has to be done before it can be disposed
+            drain();
+            fetcher.downloader.await();
+            HtmlUnitClient.disposeClient();
+            pagesSinceDispose = 0;
+        }
+    }
+
+    void drain() {
+        while (!inFlight.isEmpty()) {
+            commit(inFlight.poll());
+        }
+    }
+
+    void close() {
+        SpigetFetcher.writeBuffer.flush();
+        SpigetFetcher.status.clearWorkers();
+        detailExecutor.shutdownNow();
+        extrasExecutor.shutdownNow();
+    }
+
+    /**
+     * Stops the crawl from another thread, items which aren't committed yet are dropped
+     */
+    void cancel() {
+        stopped = true;
+    }
+
+    void submit(Item item) {
+        while (inFlight.size() >= queueSize && !stopped) {
+            commit(inFlight.poll());
+        }
+        if (stopped) {
+            return;
+        }
+        // The scheduler defers changes, which only works by skipping
+        boolean skip = (skipUnchanged || scheduler != null) && item.databaseResource != null && !isDue(item);
+        if (!skip && stopPredicted) {
+            // One of the items in flight is going to stop the crawl, don't fetch anything past it
+            drain();
+            if (stopped) {
+                return;
+            }
+            // It didn't, e.g. because the item failed
+            predictedStop = stopOnExisting.copy();
+            stopPredicted = false;
+        }
+        if (predictedStop.next(isExisting(item))) {
+            stopPredicted = true;
+        }
+        if (skip) {
+            // Nothing visible on the list changed, so there's no need to fetch the resource pages
+            item.skipped = true;
+            item.future = CompletableFuture.completedFuture(item);
+            inFlight.add(item);
+            return;
+        }
+        item.future = CompletableFuture
+                .supplyAsync(() -> fetchDetails(item), detailExecutor)
+                .thenApplyAsync(this::fetchExtras, extrasExecutor);
+        inFlight.add(item);
+    }
+
+    /**
+     * @return whether the item will count as an existing resource when it's persisted
+     */
+    boolean isExisting(Item item) {
+        KnownResource known = item.databaseResource != null ? item.databaseResource : committedResources.get(item.listedResource.getId());
+        return known != null && known.getUpdateDate() == item.listedResource.getUpdateDate();
+    }
+
+    /**
+     * @return whether the pages of a stored resource should be fetched again
+     */
+    boolean isDue(Item item) {
+        if (scheduler == null) {
+            return !item.databaseResource.matches(item.listedResource);
+        }
+        // Changes of the download count alone wait until the resource is due
+        return !item.databaseResource.matchesExceptDownloads(item.listedResource) || scheduler.shouldRefresh(item.listedResource.getId());
+    }
+
+    Item fetchDetails(Item item) {
+        if (stopped || !modeResources) {
+            return item;
+        }
+        // Update the resource
+        Resource resource = fetcher.updateResource(item.listedResource, new ResourcePageParser());
+        if (resource == null) {
+            throw new IllegalStateException("Resource #" + item.listedResource.getId() + " is not available");
+        }
+        item.listedResource = resource;
+        return item;
+    }
+
+    Item fetchExtras(Item item) {
+        if (stopped) {
+            return item;
+        }
+        if (modeResources) {
+            boolean changed = item.databaseResource == null || item.databaseResource.getUpdateDate() != item.listedResource.getUpdateDate();
+            try {
+                fetcher.updateResourceExtras((Resource) item.listedResource, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation, changed);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+        return item;
+    }
+
+    void commit(Item item) {
+        if (stopped) {
+            item.future.cancel(false);
+            return;
+        }
+        if (item.page != lastPage) {
+            // Make sure everything of the previous page is written before continuing with the next one
+            checkpoint();
+            lastPage = item.page;
+        } else if (committedSinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+        try {
+            persist(item);
+        } finally {
+            lastItem = item.index;
+            committedSinceCheckpoint++;
+        }
+    }
+
+    /**
+     * Flushes all pending writes and stores the progress up to the last committed item
+     */
+    void checkpoint() {
+        if (checkpointing || purgeIncremental) {
+            // Items are only done once their file is downloaded, otherwise a restart would skip the download
+            fetcher.downloader.await();
+        }
+        SpigetFetcher.writeBuffer.flush();
+        if (purgeIncremental) {
+            fetcher.purgeCaches();
+        }
+        fetcher.savePendingPurges();
+        if (checkpointing && lastPage > 0) {
+            CrawlCheckpoint.save(pageAmount, inverted, lastPage, lastItem, false);
+        }
+        committedSinceCheckpoint = 0;
+    }
+
+    void persist(Item item) {
+        SpigetFetcher.status.setItem(item.index);
+        try {
+            item.future.join();
+        } catch (Throwable throwable) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            Sentry.captureException(cause);
+            log.error("Unexpected exception while parsing item #" + item.index + " on page " + item.page, cause);
+            return;
+        }
+
+        try {
+            ListedResource listedResource = item.listedResource;
+            if (!item.skipped && modeResources) {
+                final int resId = listedResource.getId();
+                databaseClient.deleteUpdateRequest(new UpdateRequest() {{
+                    this.setRequestedId(resId);
+                }});
+            }
+            KnownResource databaseResource = item.databaseResource != null ? item.databaseResource : committedResources.get(listedResource.getId());
+            committedResources.put(listedResource.getId(), new KnownResource(listedResource));
+            if (databaseResource != null) {
+                if (item.skipped) {
+                    log.debug("Skipping unchanged resource #" + listedResource.getId());
+                    skippedCount++;
+                    if (databaseResource.getDownloads() != listedResource.getDownloads()) {
+                        // The page fetch was deferred, but the count on the list is up to date
+                        SpigetFetcher.writeBuffer.setResourceDownloads(listedResource.getId(), listedResource.getDownloads());
+                    }
+                } else {
+                    log.info("Updating existing resource #" + listedResource.getId());
+                    if (scheduler != null) {
+                        scheduler.onRefreshed(listedResource.getId());
+                    }
+
+                    fetcher.markUpdated(listedResource.getId());
+                    SpigetFetcher.writeBuffer.updateResource(listedResource);
+                }
+
+                if (databaseResource.getUpdateDate() != listedResource.getUpdateDate()) {// There was actually an update
+                    newCount++;
+                    stopOnExisting.next(false);
+                    if (listedResource instanceof Resource) {
+                        int updateId = -1;
+                        List<ResourceUpdate> updates = ((Resource) listedResource).getUpdates();
+                        if (updates != null && !updates.isEmpty()) {
+                            updateId = updates.get(0).getId();
+                        }
+                        fetcher.webhookExecutor.callEvent(new ResourceUpdateEvent((Resource) listedResource, listedResource.getVersion().getName(), updateId), "resource:" + listedResource.getId());
+                    }
+                } else {
+                    if (stopOnExisting.next(true)) {
+                        log.info("Last new resource found (" + item.page + "." + item.index + ") #" + stopOnExisting.getCount() + ". Stopping.");
+                        stop();
+                    }
+                }
+            } else {
+                stopOnExisting.next(false);
+                log.info("Inserting new resource #" + listedResource.getId());
+                fetcher.markUpdated(listedResource.getId());
+                SpigetFetcher.writeBuffer.insertResource(listedResource);
+
+                if (listedResource instanceof Resource) {
+                    fetcher.webhookExecutor.callEvent(new NewResourceEvent((Resource) listedResource));
+                }
+            }
+
+            if (knownAuthors.contains(listedResource.getAuthor().getId())) {
+                log.info("Updating existing author #" + listedResource.getAuthor().getId());
+                SpigetFetcher.writeBuffer.updateAuthor(listedResource.getAuthor());
+            } else {
+                log.info("Inserting new author #" + listedResource.getAuthor().getId());
+                SpigetFetcher.writeBuffer.insertAuthor(listedResource.getAuthor());
+                knownAuthors.add(listedResource.getAuthor().getId());
+                SpigetFetcher.authorCache.add(listedResource.getAuthor().getId());
+
+                if (listedResource.getAuthor() instanceof Author) {
+                    fetcher.webhookExecutor.callEvent(new NewAuthorEvent((Author) listedResource.getAuthor()));
+                }
+            }
+
+            SpigetFetcher.writeBuffer.updateOrInsertCategory(listedResource.getCategory());
+        } catch (Throwable throwable) {
+            Sentry.captureException(throwable);
+            log.error("Unexpected exception while parsing item #" + item.index + " on page " + item.page, throwable);
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        for (Item item : inFlight) {
+            item.future.cancel(false);
+        }
+        inFlight.clear();
+    }
+
+    static class Item {
+
+        final int page;
+        final int index;
+
+        boolean skipped;
+
+        ListedResource listedResource;
+        KnownResource  databaseResource;
+
+        CompletableFuture<Item> future;
+
+        Item(int page, int index, ListedResource listedResource) {
+            this.page = page;
+            this.index = index;
+            this.listedResource = listedResource;
+        }
+    }
+
+}
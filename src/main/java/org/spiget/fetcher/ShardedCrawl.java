@@ -0,0 +1,131 @@
+package org.spiget.fetcher;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.spiget.fetcher.database.PageLeases;
+import org.spiget.fetcher.database.PageLeases.Lease;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+
+/**
+ * Crawls the resource list together with other fetchers, each one working on the page ranges it has leased.
+ * <p>
+ * While crawling, the fetcher keeps renewing its lease and announcing itself, so the rate limits can be shared between all live fetchers.
+ * <p>
+ * The listing is sorted by the last update, so it keeps shifting while the ranges are crawled:
+ * a resource which is updated moves to the first page, and everything listed above its old position moves down.
+ * To make up for that, the first range is crawled again by the next run once <code>fetch.shard.leadingInterval</code> has passed instead of once per cycle,
+ * and every range also crawls the first <code>fetch.shard.overlap</code> pages of the next one, for items which moved across the boundary.
+ * Resources crawled twice that way are skipped if they didn't change.
+ */
+@Log4j2
+class ShardedCrawl {
+
+    final SpigetFetcher fetcher;
+    final PageLeases    leases;
+
+    final int  rangeSize       = config.get("fetch.shard.rangeSize").getAsInt();
+    final long cycleInterval   = config.get("fetch.shard.cycleInterval").getAsLong();
+    final long leadingInterval = config.get("fetch.shard.leadingInterval").getAsLong();
+    final int  overlap         = config.get("fetch.shard.overlap").getAsInt();
+
+    final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shard-heartbeat", true));
+
+    volatile Lease            currentLease;
+    volatile ResourcePipeline currentPipeline;
+
+    int newCount;
+    int skippedCount;
+
+    ShardedCrawl(SpigetFetcher fetcher) {
+        this.fetcher = fetcher;
+        this.leases = new PageLeases(SpigetFetcher.databaseClient.db(), SpigetFetcher.nodeId, config.get("fetch.shard.leaseTime").getAsLong());
+        long interval = config.get("fetch.shard.heartbeat").getAsLong();
+        heartbeat.scheduleWithFixedDelay(this::heartbeat, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void heartbeat() {
+        try {
+            leases.heartbeat();
+            Requests.rateLimiter.setShares(leases.countLiveNodes());
+
+            Lease lease = currentLease;
+            if (lease != null && !leases.renew(lease)) {
+                log.warn("Lost lease " + lease + ", stopping");
+                ResourcePipeline pipeline = currentPipeline;
+                if (pipeline != null) {
+                    pipeline.cancel();
+                }
+            }
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Shard heartbeat failed", e);
+        }
+    }
+
+    /**
+     * Claims and crawls page ranges until there are none left to do in this run.
+     * Each range is claimed at most once per run, ranges which are due again are left to the next run.
+     */
+    void run(boolean modeResources, boolean modeResourceVersions, boolean modeResourceUpdates, boolean modeResourceReviews, boolean modeResourceDocumentation) {
+        newCount = 0;
+        skippedCount = 0;
+        int pageAmount = config.get("fetch.resources.pages").getAsInt();
+        leases.ensureRanges(pageAmount, rangeSize);
+
+        long runStart = System.currentTimeMillis();
+        Set<Integer> attempted = new HashSet<>();
+        Lease lease;
+        while (!Thread.currentThread().isInterrupted() && (lease = leases.claim(cycleInterval, leadingInterval, runStart, attempted)) != null) {
+            log.info("Claimed page range " + lease);
+            attempted.add(lease.id);
+            ResourcePipeline pipeline = new ResourcePipeline(fetcher, modeResources, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation);
+            currentPipeline = pipeline;
+            currentLease = lease;
+            boolean complete = false;
+            try {
+                complete = pipeline.runPages(lease.from, Math.min(pageAmount, lease.to + overlap));
+            } catch (Exception e) {
+                Sentry.captureException(e);
+                log.error("Failed to crawl page range " + lease, e);
+            } finally {
+                currentLease = null;
+                currentPipeline = null;
+                newCount += pipeline.newCount;
+                skippedCount += pipeline.skippedCount;
+                try {
+                    if (complete) {
+                        leases.finish(lease);
+                    } else {
+                        leases.release(lease);
+                    }
+                } catch (Exception e) {
+                    Sentry.captureException(e);
+                    log.warn("Failed to update lease " + lease, e);
+                }
+            }
+        }
+        log.info("No page ranges left to crawl");
+    }
+
+    void stop() {
+        heartbeat.shutdownNow();
+        ResourcePipeline pipeline = currentPipeline;
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+        try {
+            leases.removeNode();
+        } catch (Exception e) {
+            Sentry.captureException(e);
+        }
+    }
+
+}
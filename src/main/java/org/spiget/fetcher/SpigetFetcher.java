@@ -2,11 +2,6 @@ package org.spiget.fetcher;
 
 import com.backblaze.b2.client.B2StorageClient;
 import com.backblaze.b2.client.B2StorageClientFactory;
-import com.backblaze.b2.client.contentSources.B2ContentTypes;
-import com.backblaze.b2.client.contentSources.B2FileContentSource;
-import com.backblaze.b2.client.structures.B2FileVersion;
-import com.backblaze.b2.client.structures.B2UploadFileRequest;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import io.sentry.Sentry;
@@ -15,50 +10,78 @@ import org.apache.logging.log4j.Level;
 import org.influxdb.dto.Point;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jsoup.Connection;
-import org.jsoup.HttpStatusException;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 import org.spiget.client.*;
 import org.spiget.client.json.JsonClient;
 import org.spiget.client.json.JsonResponse;
-import org.spiget.data.UpdateRequest;
-import org.spiget.data.author.Author;
-import org.spiget.data.author.ListedAuthor;
 import org.spiget.data.resource.ListedResource;
-import org.spiget.data.resource.Rating;
 import org.spiget.data.resource.Resource;
 import org.spiget.data.resource.ResourceReview;
 import org.spiget.data.resource.update.ResourceUpdate;
 import org.spiget.data.resource.version.ResourceVersion;
-import org.spiget.data.webhook.event.author.NewAuthorEvent;
-import org.spiget.data.webhook.event.resource.NewResourceEvent;
-import org.spiget.data.webhook.event.resource.ResourceUpdateEvent;
 import org.spiget.database.DatabaseClient;
+import org.spiget.fetcher.database.PendingPurges;
+import org.spiget.fetcher.database.ReviewStore;
+import org.spiget.fetcher.database.UpdateStore;
+import org.spiget.fetcher.database.WriteBehindBuffer;
+import org.spiget.fetcher.ratelimit.HostRateLimiter;
+import org.spiget.fetcher.util.ConcurrentBitSet;
+import org.spiget.fetcher.util.NamedThreadFactory;
 import org.spiget.fetcher.webhook.WebhookExecutor;
 import org.spiget.parser.*;
 
 import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 @Log4j2
 public class SpigetFetcher {
 
     public static JsonObject config;
 
-    public static DatabaseClient databaseClient;
+    // Identifies this process in claims
+    static final String nodeId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    public static DatabaseClient    databaseClient;
+    static        WriteBehindBuffer writeBuffer;
+    static        StatusReporter    status;
+    static        ReviewStore       reviewStore;
+    static        UpdateStore       updateStore;
+    static        AuthorCache       authorCache;
+    // Only set if fetch.priority.enabled
+    static        CrawlScheduler    crawlScheduler;
+    static        PendingPurges     pendingPurges;
     static B2StorageClient b2Client;
 
-    WebhookExecutor webhookExecutor;
-
-    static SpigetMetrics metrics;
-
-    Set<String> downloadedResources = new HashSet<>();
+    WebhookExecutor    webhookExecutor;
+    CloudflarePurger   purger;
+    // Runs the versions/updates/reviews/documentation fetches of a resource in parallel
+    ExecutorService    subFetchExecutor;
+    // Fetches the pages of single resource updates
+    ExecutorService    updatePageExecutor;
+    ResourceDownloader downloader;
+    // Only set if the resource list is crawled together with other fetchers
+    ShardedCrawl       shardedCrawl;
+    FetcherDaemon   daemon;
+
+    public static SpigetMetrics metrics;
+
+    // Ids of downloaded resources, by file type (e.g. ".jar")
+    Map<String, ConcurrentBitSet> downloadedResources = new ConcurrentHashMap<>();
+    ConcurrentBitSet              updatedResourceIds  = new ConcurrentBitSet();
+    // Same ids, but only cleared when a new run starts, since purging drains the other set
+    ConcurrentBitSet              cycleResourceIds    = new ConcurrentBitSet();
 
     public SpigetFetcher() {
     }
@@ -86,11 +109,31 @@ public class SpigetFetcher {
             SpigetClient.metrics = metrics.metrics;
             SpigetClient.project = "fetcher";
 
+            Requests.rateLimiter = new HostRateLimiter(config);
+
             webhookExecutor = new WebhookExecutor();
+            purger = new CloudflarePurger();
+            updatePageExecutor = Executors.newFixedThreadPool(config.get("fetch.resources.updates.threads").getAsInt(), new NamedThreadFactory("update-pages", true));
+            subFetchExecutor = Executors.newFixedThreadPool(config.get("fetch.pipeline.subFetchThreads").getAsInt(), new NamedThreadFactory("subfetch", true));
             log.info("registering shutdown hook");
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
+                    if (daemon != null) {
+                        log.info("Stopping daemon...");
+                        daemon.stop();
+                        if (shardedCrawl != null) {
+                            shardedCrawl.stop();
+                        }
+
+                        try {
+                            log.info("Waiting for (" + webhookExecutor.getPendingCalls() + ") Webhooks to complete...");
+                            webhookExecutor.awaitCompletion(config.get("webhook.shutdownTimeout").getAsLong());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
                     try {
                         log.info("Saving cookies...");
                         SpigetClient.saveCookiesToFile();
@@ -99,6 +142,21 @@ public class SpigetFetcher {
                         log.warn("Failed to save cookies", e);
                     }
 
+                    if (writeBuffer != null) {
+                        log.info("Flushing pending database writes...");
+                        writeBuffer.close();
+                    }
+                    if (status != null) {
+                        status.close();
+                    }
+
+                    try {
+                        UpdateRequestWorkers.releaseClaims();
+                    } catch (Exception e) {
+                        Sentry.captureException(e);
+                        log.warn("Failed to release update request claims", e);
+                    }
+
                     databaseClient.updateStatus("fetch.end", System.currentTimeMillis());
 
                     try {
@@ -128,6 +186,20 @@ public class SpigetFetcher {
                     }
                     databaseClient.connect(config.get("database.timeout").getAsInt());
                     databaseClient.collectionCount();
+                    writeBuffer = new WriteBehindBuffer(databaseClient.db(), config.get("database.bulk.maxSize").getAsInt(), config.get("database.bulk.maxAge").getAsLong());
+                    pendingPurges = new PendingPurges(databaseClient.db());
+                    restorePendingPurges();
+                    purger.loadFailed();
+                    reviewStore = new ReviewStore(databaseClient.db());
+                    updateStore = new UpdateStore(databaseClient.db());
+                    authorCache = new AuthorCache(config.get("fetch.authors.cacheSize").getAsInt());
+                    authorCache.warm(databaseClient.db());
+                    if (config.get("fetch.priority.enabled").getAsBoolean()) {
+                        crawlScheduler = new CrawlScheduler();
+                        crawlScheduler.warm(databaseClient.db());
+                    }
+                    downloader = new ResourceDownloader(this);
+                    status = new StatusReporter(databaseClient, config.get("status.interval").getAsLong(), config.get("status.systemStatsInterval").getAsLong());
                     log.info("Connection successful (" + (System.currentTimeMillis() - testStart) + "ms)");
                 } catch (Exception e) {
                     Sentry.captureException(e);
@@ -156,7 +228,7 @@ public class SpigetFetcher {
                 log.info("Testing SpigotMC connection...");
                 long testStart = System.currentTimeMillis();
                 try {
-                    SpigetResponse response = SpigetClient.get("https://www.spigotmc.org");
+                    SpigetResponse response = Requests.get("https://www.spigotmc.org");
                     int code = response.getCode();
                     if (code >= 200 && code < 400) {
                         log.info("Connection successful (" + (System.currentTimeMillis() - testStart) + "ms)");
@@ -193,7 +265,75 @@ public class SpigetFetcher {
     public void fetch() {
         log.debug("fetch");
         log.info("----- Fetcher started -----");
+        long start = startRun();
+
+        UpdateRequestWorkers updateRequestWorkers = null;
+        if (config.get("resourceRequest.concurrent").getAsBoolean()) {
+            // Process update requests alongside the resource list
+            updateRequestWorkers = new UpdateRequestWorkers(this);
+            updateRequestWorkers.start();
+        }
+
+        fetchResources();
+
+        try {
+            Thread.sleep(2000);
+        } catch (Exception ignored) {
+        }
+
+        fetchLatestReviews();
+
+        try {
+            Thread.sleep(2000);
+        } catch (Exception ignored) {
+        }
+
+        fetchUpdateRequests(updateRequestWorkers);
+
+        finishCycle();
+        if (purger.getFailedCount() > 0) {
+            // There's no next purge in this process, so give them one more chance
+            log.info("Retrying " + purger.getFailedCount() + " URLs which couldn't be purged");
+            purger.purge(Collections.emptyIterator());
+        }
+        CrawlCheckpoint.clear();
+        endRun(start);
+
+        log.info("Waiting for (" + webhookExecutor.getPendingCalls() + ") Webhooks to complete...");
+        try {
+            if (!webhookExecutor.awaitCompletion(config.get("webhook.shutdownTimeout").getAsLong())) {
+                log.warn("Timed out with " + webhookExecutor.getPendingCalls() + " Webhooks pending");
+            }
+        } catch (InterruptedException e) {
+            Sentry.captureException(e);
+            log.log(Level.ERROR, "Webhook-delay interrupted", e);
+        }
+        webhookExecutor.writeMetrics();
+
+        System.exit(0);
+    }
+
+    /**
+     * Marks the resource as written in this run, so its caches are purged and update requests for it can be skipped
+     */
+    void markUpdated(int resourceId) {
+        updatedResourceIds.add(resourceId);
+        cycleResourceIds.add(resourceId);
+        pendingPurges.add(PendingPurges.UPDATED, resourceId);
+    }
+
+    /**
+     * Keeps running and fetches on the intervals configured for the {@link FetcherDaemon}, instead of fetching once and exiting
+     */
+    public void runDaemon() {
+        log.info("----- Fetcher daemon started -----");
+        daemon = new FetcherDaemon(this);
+        daemon.start();
+    }
+
+    long startRun() {
         long start = System.currentTimeMillis();
+        cycleResourceIds.drain();
         try {
             databaseClient.updateStatus("fetch.start", start);
             long lastEnd = ((Number) databaseClient.getStatus("fetch.end", 0)).longValue();
@@ -203,171 +343,106 @@ public class SpigetFetcher {
             Sentry.captureException(e);
             log.log(Level.ERROR, "Failed to update status", e);
         }
+        return start;
+    }
 
+    void endRun(long start) {
+        long end = System.currentTimeMillis();
+        try {
+            databaseClient.updateStatus("fetch.end", end);
+            databaseClient.updateStatus("fetch.duration", (end - start));
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.log(Level.ERROR, "Failed to update status", e);
+        }
+        Requests.writeMetrics();
+        webhookExecutor.writeMetrics();
+        metrics.write(Point
+                .measurement("fetch_duration")
+                .addField("duration", (end - start))
+                .build());
+    }
+
+    void fetchResources() {
+        if (config.get("fetch.requestsOnly").getAsBoolean()) {
+            return;
+        }
         boolean modeResources = config.get("fetch.mode.resources").getAsBoolean();
         boolean modeResourceVersions = config.get("fetch.mode.resource.versions").getAsBoolean();
         boolean modeResourceUpdates = config.get("fetch.mode.resource.updates").getAsBoolean();
         boolean modeResourceReviews = config.get("fetch.mode.resource.reviews").getAsBoolean();
         boolean modeResourceDocumentation = config.get("fetch.mode.resource.documentation").getAsBoolean();
 
+        if (crawlScheduler != null) {
+            crawlScheduler.plan();
+        }
+
+        if (config.get("fetch.shard.enabled").getAsBoolean()) {
+            if (shardedCrawl == null) {
+                shardedCrawl = new ShardedCrawl(this);
+            }
+            status.setPageAmount(config.get("fetch.resources.pages").getAsInt());
+            shardedCrawl.run(modeResources, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation);
+            log.log(Level.INFO, "Finished sharded resource fetch (" + shardedCrawl.skippedCount + " unchanged resources skipped)");
+            writeResourceCounts(shardedCrawl.skippedCount, shardedCrawl.newCount);
+            requestUnvisited(modeResourceVersions, modeResourceUpdates, modeResourceReviews);
+            return;
+        }
+
         int stopOnExisting = config.get("fetch.resources.stopOnExisting").getAsInt();
-        int existingCount = 0;
-        int newCount = 0;
-        boolean fetchStopped = false;
 
         int pageAmount = config.get("fetch.resources.pages").getAsInt();
         int pageOffset = config.get("fetch.resources.pageOffset").getAsInt();
         boolean inverted = config.get("fetch.resources.inverted").getAsBoolean();
-        databaseClient.updateStatus("fetch.page.amount", pageAmount);
-        Set<Integer> updatedResourceIds = new HashSet<>();
-        int pageCounter = 0;
-        Paginator resourceListPaginator = new Paginator(SpigetClient.BASE_URL + "resources/?page=%s", pageAmount, inverted);
-        if (!config.get("fetch.requestsOnly").getAsBoolean()) {
-            //noinspection ForLoopReplaceableByForEach
-            for (Iterator<Document> iterator = resourceListPaginator.iterator(); iterator.hasNext(); ) {
-                if (fetchStopped) {
-                    break;
-                }
-                pageCounter++;
-                log.info("Fetching page " + pageCounter + "/" + pageAmount);
-                try {
-                    databaseClient.updateStatus("fetch.page.index", pageCounter);
-                    Document document = iterator.next();
-                    if (pageCounter < pageOffset) {
-                        log.info("Skipping page #" + pageCounter + " (Offset: " + pageOffset + ")");
-                        continue;
-                    }
+        status.setPageAmount(pageAmount);
 
-                    ResourceListItemParser resourceItemParser = new ResourceListItemParser();
-                    ResourcePageParser resourcePageParser = new ResourcePageParser();
-                    Elements resourceListItems = document.select("li.resourceListItem");
-                    if (resourceListItems.isEmpty()) {
-                        log.warn("Page has " + resourceListItems.size() + " resource items");
-                        log.info(document);
-                        Discord.postMessage("⚠Resource page has no resource items!", config);
-                    } else {
-                        log.debug("Page has " + resourceListItems.size() + " resource items");
-                    }
-                    int itemCounter = 0;
-                    for (Element resourceListItem : resourceListItems) {
-                        if (fetchStopped) {
-                            break;
-                        }
-                        itemCounter++;
-                        databaseClient.updateStatus("fetch.page.item.index", itemCounter);
-                        databaseClient.updateStatus("fetch.page.item.state", "list");
-                        try {
-                            ListedResource listedResource = resourceItemParser.parse(resourceListItem);
-
-                            if (listedResource != null) {
-                                if (modeResources) {
-                                    // Update the resource
-                                    listedResource = updateResource(listedResource, resourcePageParser);
-
-                                    final int resId = listedResource.getId();
-                                    databaseClient.deleteUpdateRequest(new UpdateRequest() {{
-                                        this.setRequestedId(resId);
-                                    }});
-                                }
-
-                                databaseClient.updateStatus("fetch.page.item.state", "database");
-
-                                ListedResource databaseResource = databaseClient.getResource(listedResource.getId());
-                                if (databaseResource != null) {
-                                    if (modeResources) {
-                                        listedResource = updateResourceExtras((Resource) listedResource, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation, databaseResource.getUpdateDate() != listedResource.getUpdateDate());
-                                    }
-                                    log.info("Updating existing resource #" + listedResource.getId());
-
-                                    updatedResourceIds.add(listedResource.getId());
-                                    databaseClient.updateResource(listedResource);
-
-                                    if (databaseResource.getUpdateDate() != listedResource.getUpdateDate()) {// There was actually an update
-                                        newCount++;
-                                        existingCount = 0;
-                                        if (listedResource instanceof Resource) {
-                                            int updateId = -1;
-                                            List<ResourceUpdate> updates = ((Resource) listedResource).getUpdates();
-                                            if (updates != null && !updates.isEmpty()) {
-                                                updateId = updates.get(0).getId();
-                                            }
-                                            webhookExecutor.callEvent(new ResourceUpdateEvent((Resource) listedResource, listedResource.getVersion().getName(), updateId));
-                                        }
-                                    } else {
-                                        existingCount++;
-                                        // If we stop on inverted, it would stop immediately
-                                        if (!inverted && stopOnExisting != -1 && existingCount > stopOnExisting) {
-                                            log.info("Last new resource found (" + pageCounter + "." + itemCounter + ") #" + existingCount + ". Stopping.");
-                                            fetchStopped = true;
-                                            break;
-                                        }
-                                    }
-                                } else {
-                                    existingCount = 0;
-                                    if (modeResources) {
-                                        listedResource = updateResourceExtras((Resource) listedResource, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation, true);
-                                    }
-                                    log.info("Inserting new resource #" + listedResource.getId());
-                                    updatedResourceIds.add(listedResource.getId());
-                                    databaseClient.insertResource(listedResource);
-
-                                    if (listedResource instanceof Resource) {
-                                        webhookExecutor.callEvent(new NewResourceEvent((Resource) listedResource));
-                                    }
-                                }
-
-                                ListedAuthor databaseAuthor = databaseClient.getAuthor(listedResource.getAuthor().getId());
-                                if (databaseAuthor != null) {
-                                    log.info("Updating existing author #" + listedResource.getAuthor().getId());
-                                    databaseClient.updateAuthor(listedResource.getAuthor());
-                                } else {
-                                    log.info("Inserting new author #" + listedResource.getAuthor().getId());
-                                    databaseClient.insertAuthor(listedResource.getAuthor());
-
-                                    if (listedResource.getAuthor() instanceof Author) {
-                                        webhookExecutor.callEvent(new NewAuthorEvent((Author) listedResource.getAuthor()));
-                                    }
-                                }
-
-                                databaseClient.updateOrInsertCategory(listedResource.getCategory());
-                            }
-                        } catch (Throwable throwable) {
-                            Sentry.captureException(throwable);
-                            log.error("Unexpected exception while parsing item #" + itemCounter + " on page " + pageCounter, throwable);
-                        }
-
-                        if (itemCounter % 10 == 0) {
-                            databaseClient.updateSystemStats("fetch.");
-                        }
-                    }
-                } catch (Throwable throwable) {
-                    Sentry.captureException(throwable);
-                    log.log(Level.ERROR, "Unexpected exception while parsing page #" + pageCounter, throwable);
-                }
-
-                databaseClient.updateSystemStats("fetch.");
-
-                if (pageCounter % 2 == 0) {
-                    HtmlUnitClient.disposeClient();
-                }
+        CrawlCheckpoint checkpoint = CrawlCheckpoint.load(pageAmount, inverted, config.get("fetch.checkpoint.maxAge").getAsLong());
+        if (checkpoint != null) {
+            if (checkpoint.complete) {
+                log.info("Resource list was already crawled completely before the restart");
+                return;
             }
-            log.log(Level.INFO, "Finished live resource fetch");
+            log.info("Resuming resource list crawl after page " + checkpoint.page + ", item " + checkpoint.item);
         }
 
+        Paginator resourceListPaginator = new Paginator(SpigetClient.BASE_URL + "resources/?page=%s", pageAmount, inverted);
+        ResourcePipeline pipeline = new ResourcePipeline(this, modeResources, modeResourceVersions, modeResourceUpdates, modeResourceReviews, modeResourceDocumentation);
+        pipeline.run(resourceListPaginator, pageAmount, pageOffset, inverted, stopOnExisting, checkpoint);
+        log.log(Level.INFO, "Finished live resource fetch (" + pipeline.skippedCount + " unchanged resources skipped)");
+        writeResourceCounts(pipeline.skippedCount, pipeline.newCount);
+        requestUnvisited(modeResourceVersions, modeResourceUpdates, modeResourceReviews);
+    }
+
+    /**
+     * Lets the update requests refresh the planned resources which weren't on the crawled pages
+     */
+    void requestUnvisited(boolean modeResourceVersions, boolean modeResourceUpdates, boolean modeResourceReviews) {
+        if (crawlScheduler == null || Thread.currentThread().isInterrupted()) {
+            return;
+        }
         try {
-            metrics.metrics.getInflux().write(Point
-                    .measurement("new_resources")
-                    .addField("count", newCount)
-                    .build());
+            int requested = crawlScheduler.requestUnvisited(databaseClient.db(), modeResourceVersions, modeResourceUpdates, modeResourceReviews);
+            if (requested > 0) {
+                log.info("Requested updates of " + requested + " planned resources which weren't on the resource list");
+            }
         } catch (Exception e) {
             Sentry.captureException(e);
+            log.warn("Failed to request updates of planned resources", e);
         }
+    }
 
-        try {
-            Thread.sleep(2000);
-        } catch (Exception ignored) {
-        }
+    void writeResourceCounts(int skippedCount, int newCount) {
+        metrics.write(Point
+                .measurement("skipped_resources")
+                .addField("count", skippedCount)
+                .build());
+        metrics.write(Point
+                .measurement("new_resources")
+                .addField("count", newCount)
+                .build());
+    }
 
+    void fetchLatestReviews() {
         try {
             log.log(Level.INFO, "Running latest review update");
             updateLatestResourceReviews();
@@ -375,187 +450,125 @@ public class SpigetFetcher {
             Sentry.captureException(throwable);
             log.log(Level.ERROR, "Latest review update exception", throwable);
         }
+    }
 
-        try {
-            Thread.sleep(2000);
-        } catch (Exception ignored) {
-        }
-
+    /**
+     * @param updateRequestWorkers workers which were already started, or <code>null</code> to start new ones
+     */
+    void fetchUpdateRequests(@Nullable UpdateRequestWorkers updateRequestWorkers) {
         try {
             log.log(Level.INFO, "Running update request fetch");
-            int maxResourceRequest = config.get("resourceRequest.max").getAsInt();
-            Set<UpdateRequest> updateRequests = databaseClient.getUpdateRequests(maxResourceRequest);
-            if (updateRequests != null && !updateRequests.isEmpty()) {
-                int updateRequestCount = updateRequests.size();
-                try {
-                    metrics.metrics.getInflux().write(Point
-                            .measurement("update_requests")
-                            .addField("count", updateRequestCount)
-                            .build());
-                } catch (Exception e) {
-                    Sentry.captureException(e);
-                }
-                long updateStart = System.currentTimeMillis();
-                log.log(Level.INFO, "Fetching (" + updateRequestCount + ") resources with requested update...");
-                ResourcePageParser resourcePageParser = new ResourcePageParser();
-                int c = 0;
-                for (UpdateRequest request : updateRequests) {
-                    if (request.getRequestedId() <= 0) {
-                        continue;
-                    }
-                    if (c++ > maxResourceRequest) {
-                        log.info("Max Resource Requests processed. Stopping.");
-                        break;
-                    }
-                    if (updatedResourceIds.contains(request.getRequestedId())) {
-                        databaseClient.deleteUpdateRequest(request);
-                        continue;
-                    }
-                    Resource resource;
-                    try {
-                        resource = databaseClient.getResource(request.getRequestedId());
-                    } catch (Exception e) {
-                        Sentry.captureException(e);
-                        log.log(Level.WARN, "Failed to query resource data for " + request.getRequestedId(), e);
-                        continue;
-                    }
-                    boolean existed = resource != null;
-                    if (resource == null) {
-                        resource = new Resource(request.getRequestedId());
-                    }
-                    try {
-                        long oldUpdateDate = resource.getUpdateDate();
-
-                        resource = updateResource(resource, resourcePageParser);
-                        if (resource == null) {
-                            if (request.isDelete()) {
-                                log.log(Level.INFO, "Deleting resource #" + request.getRequestedId() + " since it has likely been deleted.");
-                                databaseClient.deleteResource(request.getRequestedId());
-                            }
-                            databaseClient.deleteUpdateRequest(request);
-                            continue;
-                        }
-                        updateResourceExtras(resource, request.isVersions(), request.isUpdates(), request.isReviews(), true, true);
-
-                        if (existed) {
-                            log.info("Updating existing resource #" + resource.getId());
-                        } else {
-                            log.log(Level.INFO, "Handling resource update request for a resource that wasn't in the database already (" + request.getRequestedId() + ")");
-                        }
-
-                        databaseClient.updateResource(resource);
-                        updatedResourceIds.add(resource.getId());
-
-                        databaseClient.deleteUpdateRequest(request);
-                    } catch (Throwable throwable) {
-                        Sentry.captureException(throwable);
-                        log.error("Unexpected exception while updating resource #" + request.getRequestedId(), throwable);
-                    }
-                }
-                log.log(Level.INFO, "Finished requested updates. Took " + (((double) System.currentTimeMillis() - updateStart) / 1000 / 60) + " minutes to update " + updateRequestCount + " resources.");
+            if (updateRequestWorkers == null) {
+                updateRequestWorkers = new UpdateRequestWorkers(this);
+                updateRequestWorkers.start();
             }
+            updateRequestWorkers.await();
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.log(Level.ERROR, "Update Request exception", throwable);
         }
+    }
 
-        try {
-            metrics.metrics.getInflux().write(Point
-                    .measurement("downloaded_resources")
-                    .addField("count", downloadedResources.size())
-                    .build());
-        } catch (Exception e) {
-            Sentry.captureException(e);
-        }
+    /**
+     * Purges the cache for everything updated since the last call and writes all pending data
+     */
+    synchronized void finishCycle() {
+        downloader.await();
+        // Everything has to be written before the cache is purged, otherwise the API could cache the old data again
+        writeBuffer.flush();
+        purgeCaches();
+        status.flush();
+    }
 
+    /**
+     * Purges the cached files & API responses of all resources which changed since the last purge
+     */
+    synchronized void purgeCaches() {
+        // Everything up to here is purged below
+        long saved = savePendingPurges();
+        // Take what's there now, jobs running in parallel keep adding to the sets
+        Map<String, BitSet> downloadedResources = new HashMap<>();
+        int downloadedCount = 0;
+        for (Map.Entry<String, ConcurrentBitSet> entry : this.downloadedResources.entrySet()) {
+            BitSet ids = entry.getValue().drain();
+            downloadedResources.put(entry.getKey(), ids);
+            downloadedCount += ids.cardinality();
+        }
+        BitSet updatedResourceIds = this.updatedResourceIds.drain();
+
+        metrics.write(Point
+                .measurement("downloaded_resources")
+                .addField("count", downloadedCount)
+                .build());
+
+        // The URLs are only created while the purger consumes them
+        Stream<String> cdnFiles = downloadedResources.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream().mapToObj(r -> "https://cdn.spiget.org/file/spiget-resources/" + r + entry.getKey()/*1234.jar*/));
+        Stream<String> apiUrls = updatedResourceIds.stream().boxed().flatMap(r -> Stream.of(
+                "https://api.spiget.org/v2/resources/" + r/*54321*/,
+                "https://api.spiget.org/v2/resources/" + r + "/download",
+                "https://api.spiget.org/v2/resources/" + r + "/versions",
+                "https://api.spiget.org/v2/resources/" + r + "/versions/latest",
+                "https://api.spiget.org/v2/resources/" + r + "/updates",
+                "https://api.spiget.org/v2/resources/" + r + "/reviews"));
+        purger.purge(Stream.concat(cdnFiles, apiUrls).iterator());
         try {
-            if (!downloadedResources.isEmpty()) {
-                JsonArray cdnFiles = new JsonArray();
-                downloadedResources.forEach(r -> {
-                    cdnFiles.add("https://cdn.spiget.org/file/spiget-resources/" + r/*1234.jar*/);
-                });
-                purgeCloudflareCache(cdnFiles);
-
-                JsonArray resourceFiles = new JsonArray();
-                JsonArray downloadFiles = new JsonArray();
-                JsonArray versionFiles = new JsonArray();
-                JsonArray latestVersionFiles = new JsonArray();
-                JsonArray updateFiles = new JsonArray();
-                JsonArray reviewFiles = new JsonArray();
-                updatedResourceIds.forEach(r -> {
-                    resourceFiles.add("https://api.spiget.org/v2/resources/" + r/*54321*/);
-                    downloadFiles.add("https://api.spiget.org/v2/resources/" + r + "/download");
-                    versionFiles.add("https://api.spiget.org/v2/resources/" + r + "/versions");
-                    latestVersionFiles.add("https://api.spiget.org/v2/resources/" + r + "/versions/latest");
-                    updateFiles.add("https://api.spiget.org/v2/resources/" + r + "/updates");
-                    reviewFiles.add("https://api.spiget.org/v2/resources/" + r + "/reviews");
-                });
-
-                purgeCloudflareCache(resourceFiles);
-                purgeCloudflareCache(downloadFiles);
-                purgeCloudflareCache(versionFiles);
-                purgeCloudflareCache(latestVersionFiles);
-                purgeCloudflareCache(updateFiles);
-                purgeCloudflareCache(reviewFiles);
+            if (saved >= 0) {
+                pendingPurges.removePurged(saved);
             }
         } catch (Exception e) {
             Sentry.captureException(e);
-            log.log(Level.WARN, "Failed to invalidate cloudflare cache", e);
-            if (e instanceof HttpStatusException) {
-                log.log(Level.WARN, ((HttpStatusException) e).getStatusCode() + "");
-            }
+            log.warn("Failed to remove purged resources", e);
         }
+    }
 
-        long end = System.currentTimeMillis();
-        try {
-            databaseClient.updateStatus("fetch.end", end);
-            databaseClient.updateStatus("fetch.duration", (end - start));
-        } catch (Exception e) {
-            Sentry.captureException(e);
-            log.log(Level.ERROR, "Failed to update status", e);
-        }
+    ConcurrentBitSet getDownloadedResources(String fileType) {
+        return downloadedResources.computeIfAbsent(fileType, t -> new ConcurrentBitSet());
+    }
+
+    void markDownloaded(String fileType, int resourceId) {
+        getDownloadedResources(fileType).add(resourceId);
+        pendingPurges.add(fileType, resourceId);
+    }
+
+    /**
+     * Stores the resources added since the last call, so their caches are still purged after a restart
+     *
+     * @return the value to remove the stored resources with once they're purged, or -1 if they couldn't be saved
+     */
+    long savePendingPurges() {
         try {
-            metrics.metrics.getInflux().write(Point
-                    .measurement("fetch_duration")
-                    .addField("duration", (end - start))
-                    .build());
+            return pendingPurges.save();
         } catch (Exception e) {
             Sentry.captureException(e);
+            log.warn("Failed to save pending purges", e);
+            return -1;
         }
-
-        log.info("Waiting for (" + webhookExecutor.pendingCalls + ") Webhooks to complete...");
-        while (!webhookExecutor.isFinished()) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                Sentry.captureException(e);
-                log.log(Level.ERROR, "Webhook-delay interrupted", e);
-            }
-        }
-
-        System.exit(0);
     }
 
-    private void purgeCloudflareCache(JsonArray files) throws IOException {
-        JsonObject body = new JsonObject();
-        body.add("files", files);
-        Connection.Response response = Jsoup.connect("https://api.cloudflare.com/client/v4/zones/" + config.get("cf.zone").getAsString() + "/purge_cache")
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + config.get("cf.token").getAsString())
-                .requestBody(JsonClient.gson.toJson(body))
-                .method(Connection.Method.POST)
-                .ignoreContentType(true)
-                .ignoreHttpErrors(true)
-                .execute();
-        log.log(Level.INFO, "CF purge " + response.statusCode() + " " + response.statusMessage());
-        if (response.statusCode() != 200) {
-            log.warn(response.body());
+    /**
+     * Picks up the purges a previous process didn't get to
+     */
+    void restorePendingPurges() {
+        Map<String, BitSet> pending = pendingPurges.load();
+        pending.forEach((kind, ids) -> {
+            if (PendingPurges.UPDATED.equals(kind)) {
+                ids.stream().forEach(id -> {
+                    updatedResourceIds.add(id);
+                    cycleResourceIds.add(id);
+                });
+            } else {
+                ids.stream().forEach(getDownloadedResources(kind)::add);
+            }
+        });
+        if (!pending.isEmpty()) {
+            log.info("Restored " + pending.values().stream().mapToInt(BitSet::cardinality).sum() + " pending cache purges");
         }
     }
 
     private boolean checkIfResourceExists(int id) {
         try {
-            JsonResponse response = JsonClient.get("https://api.spigotmc.org/simple/0.1/index.php?action=getResource&id=" + id);
+            JsonResponse response = Requests.getJson("https://api.spigotmc.org/simple/0.1/index.php?action=getResource&id=" + id);
             if (response != null) {
                 if (response.code == 404) {
                     return false;
@@ -572,19 +585,13 @@ public class SpigetFetcher {
     }
 
     @Nullable
-    private Resource updateResource(@NotNull ListedResource listedResource, @NotNull ResourcePageParser resourcePageParser) {
-        databaseClient.updateStatus("fetch.page.item.state", "general");
+    Resource updateResource(@NotNull ListedResource listedResource, @NotNull ResourcePageParser resourcePageParser) {
+        status.setState("general");
         try {
-            SpigetResponse response = SpigetClient.get(SpigetClient.BASE_URL + "resources/" + listedResource.getId());
+            SpigetResponse response = Requests.get(SpigetClient.BASE_URL + "resources/" + listedResource.getId());
             if (response.getCode() != 200) {// This SHOULD only happen if this method is called via the update requests part
                 log.warn("Failed to update resource #" + listedResource.getId() + ": page returned non-OK status code (" + response.getCode() + ")");
 //                log.warn(response.getDocument().toString());
-                if (response.getCode() == 429) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (Exception e) {
-                    }
-                }
                 if (response.getCode() == 403 || response.getCode() == 404) {
                     return null;
                 }
@@ -599,25 +606,42 @@ public class SpigetFetcher {
         }
     }
 
-    private Resource updateResourceExtras(@NotNull Resource resource, boolean modeResourceVersions, boolean modeResourceUpdates, boolean modeResourceReviews, boolean modeResourceDocumentation, boolean modeResourceDownload) throws InterruptedException {
+    Resource updateResourceExtras(@NotNull Resource resource, boolean modeResourceVersions, boolean modeResourceUpdates, boolean modeResourceReviews, boolean modeResourceDocumentation, boolean modeResourceDownload) throws InterruptedException {
         // Do this inside of here, so we can be sure we actually have a Resource object
+        // The sub-fetches are independent, so they run in parallel and each merges its results into the resource when it's done
+        // Plain futures, since cancelling those interrupts the sub-fetches which are already running
+        List<Future<?>> subFetches = new ArrayList<>();
         if (modeResourceVersions) {
-            updateResourceVersions(resource);
+            subFetches.add(subFetchExecutor.submit(() -> updateResourceVersions(resource)));
         }
         if (modeResourceUpdates) {
-            updatedResourceUpdates(resource);
+            subFetches.add(subFetchExecutor.submit(() -> updatedResourceUpdates(resource)));
         }
         if (modeResourceReviews) {
-            updateResourceReviews(resource);
+            subFetches.add(subFetchExecutor.submit(() -> updateResourceReviews(resource)));
         }
         if (modeResourceDocumentation) {
-            updateResourceDocumentation(resource);
+            subFetches.add(subFetchExecutor.submit(() -> updateResourceDocumentation(resource)));
         }
         if (modeResourceDownload && !resource.isExternal() && !resource.isPremium()) {
             if (SpigetFetcher.config.get("fetch.resources.download").getAsBoolean()) {
                 downloadResource(resource);
             }
         }
+        try {
+            for (Future<?> subFetch : subFetches) {
+                try {
+                    subFetch.get();
+                } catch (ExecutionException e) {
+                    // The sub-fetches handle their own errors
+                    Sentry.captureException(e);
+                    log.error("Unexpected exception in sub-fetch of resource #" + resource.getId(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            subFetches.forEach(subFetch -> subFetch.cancel(true));
+            throw e;
+        }
         return resource;
     }
 
@@ -634,15 +658,19 @@ public class SpigetFetcher {
     }
 
     private void updateResourceVersions(@NotNull Resource resource) {
-        databaseClient.updateStatus("fetch.page.item.state", "versions");
+        status.setState("versions");
         ResourceVersionItemParser resourceVersionItemParser = resource.isPremium() ? new PremiumResourceVersionItemParser() : new ResourceVersionItemParser();
         try {
-            Document versionDocument = SpigetClient.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/history").getDocument();
+            Document versionDocument = Requests.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/history").getDocument();
 
 //            writeDocumentToFile(versionDocument, resource.getId() + "-history");
 
             Element resourceHistory = versionDocument.select("table.resourceHistory").first();
+            // Only the table is needed, so the rest of the page can be collected while the versions are parsed
+            resourceHistory.remove();
+            versionDocument = null;
             Elements versionElements = resourceHistory.select("tr.dataRow");
+            List<ResourceVersion> versions = new ArrayList<>();
             boolean first = true;
             int i = 0;
             for (Element versionElement : versionElements) {
@@ -662,12 +690,18 @@ public class SpigetFetcher {
                     log.log(Level.ERROR, "Failed to make UUID for version, Resource: " + resource.getId() + ", Author: " + resource.getAuthor().getId() + ", Version: " + resourceVersion.getName(), e);
                 }
 
-                resource.getVersions().add(resourceVersion);
+                versions.add(resourceVersion);
                 resourceVersion.setResource(resource.getId());
 
-                databaseClient.updateOrInsertVersion(resource, resourceVersion);
+                writeBuffer.updateOrInsertVersion(resourceVersion);
+            }
+            synchronized (resource) {
+                resource.getVersions().addAll(versions);
+                resource.setVersion(resource.getVersions().get(0));
             }
-            resource.setVersion(resource.getVersions().get(0));
+        } catch (InterruptedException e) {
+            // Cancelled
+            Thread.currentThread().interrupt();
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.error("Unexpected exception while parsing resource versions for #" + resource.getId(), throwable);
@@ -675,14 +709,22 @@ public class SpigetFetcher {
     }
 
     private void updatedResourceUpdates(@NotNull Resource resource) {
-        databaseClient.updateStatus("fetch.page.item.state", "updates");
+        status.setState("updates");
         ResourceUpdateItemParer resourceUpdateItemParer = new ResourceUpdateItemParer();
-        ResourceUpdateParser resourceUpdateParser = new ResourceUpdateParser();
         try {
-            int pageCount = Paginator.parseDocumentPageCount(SpigetClient.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/updates").getDocument());
+            int pageCount = Paginator.parseDocumentPageCount(Requests.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/updates").getDocument());
             int maxPage = Math.min(pageCount, config.get("fetch.resources.updates.maxPage").getAsInt());
             Paginator resourceUpdatesPaginator = new Paginator(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/updates?page=%s", maxPage, false);
-            for (Document updateDocument : resourceUpdatesPaginator) {
+
+            // Stored updates with a description only need their likes refreshed every now and then
+            Map<Integer, UpdateStore.KnownUpdate> knownUpdates = updateStore.getUpdates(resource.getId());
+            long now = System.currentTimeMillis();
+            long likesInterval = config.get("fetch.resources.updates.likesInterval").getAsLong();
+            long likesMaxInterval = config.get("fetch.resources.updates.likesMaxInterval").getAsLong();
+            long likesHalfAge = config.get("fetch.resources.updates.likesHalfAge").getAsLong();
+
+            List<CompletableFuture<ResourceUpdate>> updates = new ArrayList<>();
+            for (Document updateDocument : Requests.pages(resourceUpdatesPaginator)) {
                 Element resourceUpdatesTab = updateDocument.select("li.resourceTabUpdates").first();
                 if (resourceUpdatesTab == null || !resourceUpdatesTab.hasClass("active")) {
                     // We're not on the updates page, which probably means the resource hasn't been updated yet.
@@ -694,36 +736,87 @@ public class SpigetFetcher {
                 Elements resourceUpdateElements = updateDocument.select("li.resourceUpdate");
                 for (Element resourceUpdateElement : resourceUpdateElements) {
                     ResourceUpdate resourceUpdate = resourceUpdateItemParer.parse(resourceUpdateElement);
-                    Document resourceUpdateDocument = SpigetClient.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/update?update=" + resourceUpdate.getId()).getDocument();
-//                    writeDocumentToFile(resourceUpdateDocument, resource.getId() + "-update-" + resourceUpdate.getId());
-                    resourceUpdate = resourceUpdateParser.parse(resourceUpdateDocument, resourceUpdate);
-
-                    Document resourceUpdateLikesDocument = SpigetClient.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/update-likes?resource_update_id=" + resourceUpdate.getId()).getDocument();
-                    Elements likesElements = resourceUpdateLikesDocument.select("li.memberListItem");
-                    resourceUpdate.setLikes(likesElements.size());
-
-                    resource.getUpdates().add(resourceUpdate);
-                    resource.setLikes(resource.getLikes() + resourceUpdate.getLikes());
-
-                    resourceUpdate.setResource(resource.getId());
+                    UpdateStore.KnownUpdate knownUpdate = knownUpdates.get(resourceUpdate.getId());
+                    if (knownUpdate == null || !knownUpdate.complete) {
+                        updates.add(CompletableFuture.supplyAsync(() -> fetchResourceUpdate(resource, resourceUpdate), updatePageExecutor));
+                    } else if (knownUpdate.isLikesDue(now, likesInterval, likesMaxInterval, likesHalfAge)) {
+                        updates.add(CompletableFuture.supplyAsync(() -> {
+                            resourceUpdate.setLikes(fetchResourceUpdateLikes(resource, resourceUpdate));
+                            writeBuffer.setUpdateLikes(resourceUpdate.getId(), resourceUpdate.getLikes());
+                            return resourceUpdate;
+                        }, updatePageExecutor));
+                    } else {
+                        resourceUpdate.setLikes(knownUpdate.likes);
+                        updates.add(CompletableFuture.completedFuture(resourceUpdate));
+                    }
+                }
+            }
 
-                    databaseClient.updateOrInsertUpdate(resource, resourceUpdate);
+            List<ResourceUpdate> resourceUpdates = new ArrayList<>();
+            int likes = 0;
+            for (CompletableFuture<ResourceUpdate> future : updates) {
+                try {
+                    ResourceUpdate resourceUpdate = future.get();
+                    resourceUpdates.add(resourceUpdate);
+                    likes += resourceUpdate.getLikes();
+                } catch (ExecutionException e) {
+                    Sentry.captureException(e.getCause());
+                    log.error("Unexpected exception while parsing resource update for #" + resource.getId(), e.getCause());
                 }
             }
+            synchronized (resource) {
+                resource.getUpdates().addAll(resourceUpdates);
+                resource.setLikes(resource.getLikes() + likes);
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+            Thread.currentThread().interrupt();
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.error("Unexpected exception while parsing resource updates for #" + resource.getId(), throwable);
         }
     }
 
+    private ResourceUpdate fetchResourceUpdate(@NotNull Resource resource, @NotNull ResourceUpdate resourceUpdate) {
+        try {
+            Document resourceUpdateDocument = Requests.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/update?update=" + resourceUpdate.getId()).getDocument();
+//            writeDocumentToFile(resourceUpdateDocument, resource.getId() + "-update-" + resourceUpdate.getId());
+            resourceUpdate = new ResourceUpdateParser().parse(resourceUpdateDocument, resourceUpdate);
+            resourceUpdate.setLikes(fetchResourceUpdateLikes(resource, resourceUpdate));
+            resourceUpdate.setResource(resource.getId());
+
+            writeBuffer.updateOrInsertUpdate(resourceUpdate);
+            writeBuffer.setUpdateLikes(resourceUpdate.getId(), resourceUpdate.getLikes());
+            return resourceUpdate;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private int fetchResourceUpdateLikes(@NotNull Resource resource, @NotNull ResourceUpdate resourceUpdate) {
+        try {
+            Document resourceUpdateLikesDocument = Requests.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/update-likes?resource_update_id=" + resourceUpdate.getId()).getDocument();
+            return resourceUpdateLikesDocument.select("li.memberListItem").size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
     private void updateResourceReviews(@NotNull Resource resource) {
-        databaseClient.updateStatus("fetch.page.item.state", "reviews");
+        status.setState("reviews");
         ResourceReviewItemParser reviewItemParser = new ResourceReviewItemParser();
         try {
-            int pageCount = Paginator.parseDocumentPageCount(SpigetClient.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/reviews").getDocument());
+            int pageCount = Paginator.parseDocumentPageCount(Requests.get(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/reviews").getDocument());
             int maxPage = Math.min(pageCount, config.get("fetch.resources.reviews.maxPage").getAsInt());
             Paginator resourceReviewsPaginator = new Paginator(SpigetClient.BASE_URL + "resources/" + resource.getId() + "/reviews?page=%s", maxPage, false);
-            for (Document reviewDocument : resourceReviewsPaginator) {
+            List<ResourceReview> reviews = new ArrayList<>();
+            for (Document reviewDocument : Requests.pages(resourceReviewsPaginator)) {
                 Element resourceReviewsTab = reviewDocument.select("li.resourceTabReviews").first();
                 if (resourceReviewsTab == null || !resourceReviewsTab.hasClass("active")) {
                     // We're not on the reviews page, which probably means the resource hasn't been reviewed yet.
@@ -734,17 +827,21 @@ public class SpigetFetcher {
                 for (Element reviewElement : reviewElements) {
                     ResourceReview review = reviewItemParser.parse(reviewElement);
 
-                    resource.getReviews().add(review);
+                    reviews.add(review);
                     review.setResource(resource.getId());
 
-                    Author databaseReviewAuthor = databaseClient.getAuthor(review.getAuthor().getId());
-                    if (databaseReviewAuthor == null) {// Only insert if the document doesn't exist, so we don't accidentally overwrite existing data
-                        databaseClient.insertAuthor(review.getAuthor());
-                    }
+                    // Only insert if the document doesn't exist, so we don't accidentally overwrite existing data
+                    authorCache.insertIfAbsent(review.getAuthor());
 
-                    databaseClient.updateOrInsertReview(resource, review);
+                    writeBuffer.updateOrInsertReview(review);
                 }
             }
+            synchronized (resource) {
+                resource.getReviews().addAll(reviews);
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+            Thread.currentThread().interrupt();
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.error("Unexpected exception while parsing resource reviews for #" + resource.getId(), throwable);
@@ -752,111 +849,70 @@ public class SpigetFetcher {
     }
 
     private void updateLatestResourceReviews() {
-        databaseClient.updateStatus("fetch.page.item.state", "reviews");
+        status.setState("reviews");
         ResourceReviewItemParser reviewItemParser = new ResourceReviewItemParser();
 
         try {
-            int pageCount = Paginator.parseDocumentPageCount(SpigetClient.get(SpigetClient.BASE_URL + "resources/reviews").getDocument());
+            int pageCount = Paginator.parseDocumentPageCount(Requests.get(SpigetClient.BASE_URL + "resources/reviews").getDocument());
             int maxPage = Math.min(pageCount, config.get("fetch.resources.latestReviews.maxPage").getAsInt());
             Paginator resourceReviewsPaginator = new Paginator(SpigetClient.BASE_URL + "resources/reviews?page=%s", maxPage, false);
 
-            for (Document reviewDocument : resourceReviewsPaginator) {
+            for (Document reviewDocument : Requests.pages(resourceReviewsPaginator)) {
                 Element reviewList = reviewDocument.select("ol.reviews").first();
                 Elements reviewElements = reviewList.select("li.primaryContent.review");
 
                 for (Element reviewElement : reviewElements) {
                     ResourceReview review = reviewItemParser.parse(reviewElement);
-                    Resource resource = databaseClient.getResource(review.getResource());
 
-                    boolean reviewExists = resource.getReviews().stream().anyMatch(r -> r.getId() == review.getId());
-                    if (reviewExists) {
+                    if (reviewStore.isKnown(review.getId())) {
                         return; //We reached a review that's already in the db, so we finished fetching the latest ones.
                     }
 
-                    resource.getReviews().add(review);
-                    review.setResource(review.getResource());
-
-                    float newAverage = resource.getRating().getAverage() + ((review.getRating().getAverage() - resource.getRating().getAverage()) / resource.getReviews().size());
-                    // round average to 1 decimal
-                    newAverage = Math.round(newAverage * 10) / 10f;
-                    resource.setRating(new Rating(resource.getReviews().size(), newAverage));
-
-                    Author databaseReviewAuthor = databaseClient.getAuthor(review.getAuthor().getId());
-                    if (databaseReviewAuthor == null) {// Only insert if the document doesn't exist, so we don't accidentally overwrite existing data
-                        databaseClient.insertAuthor(review.getAuthor());
+                    if (!reviewStore.addReview(review.getResource(), review)) {
+                        log.warn("Skipping review #" + review.getId() + " of unknown resource #" + review.getResource());
+                        continue;
                     }
 
-                    databaseClient.updateOrInsertReview(resource, review);
-                    databaseClient.updateResource(resource);
+                    // Only insert if the document doesn't exist, so we don't accidentally overwrite existing data
+                    authorCache.insertIfAbsent(review.getAuthor());
 
-                    log.info("Updated resource #" + resource.getId() + " with new review #" + review.getId());
+                    log.info("Updated resource #" + review.getResource() + " with new review #" + review.getId());
                 }
             }
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.error("Unexpected exception while parsing resource reviews", throwable);
+        } finally {
+            writeBuffer.flush();
         }
     }
 
     private void updateResourceDocumentation(@NotNull Resource resource) {
-        databaseClient.updateStatus("fetch.page.item.state", "documentation");
+        status.setState("documentation");
         try {
             if (resource.getLinks().containsKey("documentation")) {
-                Document documentationDocument = SpigetClient.get(SpigetClient.BASE_URL + resource.getLinks().get("documentation")).getDocument();
+                Document documentationDocument = Requests.get(SpigetClient.BASE_URL + resource.getLinks().get("documentation")).getDocument();
                 Element mainContainer = documentationDocument.select("div.mainContainer").first();
                 if (mainContainer != null) {
                     Element documentationText = mainContainer.select("blockquote.messageText").first();
                     if (documentationText != null) {
-                        resource.setDocumentation(Base64.getEncoder().encodeToString(documentationText.html().getBytes()));
+                        String documentation = Base64.getEncoder().encodeToString(documentationText.html().getBytes());
+                        synchronized (resource) {
+                            resource.setDocumentation(documentation);
+                        }
                     }
                 }
             }
+        } catch (InterruptedException e) {
+            // Cancelled
+            Thread.currentThread().interrupt();
         } catch (Throwable throwable) {
             Sentry.captureException(throwable);
             log.error("Unexpected exception while parsing resource documentation for #" + resource.getId(), throwable);
         }
     }
 
-    private void downloadResource(@NotNull Resource resource) throws InterruptedException {
-        databaseClient.updateStatus("fetch.page.item.state", "download");
-        log.info("Downloading #" + resource.getId());
-        try {
-            File outputFile = File.createTempFile("resource", resource.getId() + resource.getFile().getType());
-
-            log.info("Downloading '" + resource.getFile().getUrl() + "' to '" + outputFile + "'...");
-            SpigetDownload download = SpigetClient.download(SpigetClient.BASE_URL + resource.getFile().getUrl());
-            if (download.isAvailable()) {
-                InputStream inputStream = download.getInputStream();
-                log.info("Available Size: " + inputStream.available());
-                ReadableByteChannel channel = Channels.newChannel(inputStream);
-                FileOutputStream out = new FileOutputStream(outputFile);
-                out.getChannel().transferFrom(channel, 0, 10000000L/*10MB, should be enough*/);
-                out.flush();
-                out.close();
-
-                if (b2Client != null) {
-                    try {
-                        log.info("Uploading to B2...");
-                        B2FileVersion fileVersion = b2Client
-                                .uploadSmallFile(B2UploadFileRequest
-                                        .builder(config.get("b2.bucket").getAsString(), "" + resource.getId() + resource.getFile().getType(), B2ContentTypes.B2_AUTO, B2FileContentSource
-                                                .build(outputFile))
-                                        .build());
-                        log.info(fileVersion);
-
-                        outputFile.deleteOnExit();
-                    } catch (Exception e) {
-                        Sentry.captureException(e);
-                        log.warn("Failed to upload " + outputFile + " to B2", e);
-                    }
-                }
-                downloadedResources.add("" + resource.getId() + resource.getFile().getType());
-            } else {
-                log.warn("Download is not available (probably blocked by CloudFlare)");
-            }
-        } catch (IOException e) {
-            Sentry.captureException(e);
-            log.warn("Download for resource #" + resource.getId() + " failed", e);
-        }
+    private void downloadResource(@NotNull Resource resource) {
+        downloader.submit(resource);
     }
 }
@@ -1,6 +1,8 @@
 package org.spiget.fetcher;
 
 import com.google.gson.JsonObject;
+import io.sentry.Sentry;
+import org.influxdb.dto.Point;
 import org.inventivetalent.metrics.IntervalFlusher;
 import org.inventivetalent.metrics.Metrics;
 
@@ -16,4 +18,15 @@ public class SpigetMetrics {
         this.metrics.setFlusher(new IntervalFlusher(this.metrics, 10, TimeUnit.SECONDS));
     }
 
+    /**
+     * Writes the point, metrics are never worth failing the caller for
+     */
+    public void write(Point point) {
+        try {
+            this.metrics.getInflux().write(point);
+        } catch (Exception e) {
+            Sentry.captureException(e);
+        }
+    }
+
 }
@@ -0,0 +1,112 @@
+package org.spiget.fetcher;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.spiget.database.DatabaseClient;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the crawl progress in memory and writes it to the status collection on a fixed interval.
+ * <p>
+ * Only values which changed since the last push are written, so the status costs a handful of writes per interval no matter how many items are processed.
+ */
+@Log4j2
+public class StatusReporter {
+
+    final DatabaseClient databaseClient;
+    final long           systemStatsInterval;
+
+    final AtomicInteger           pageIndex  = new AtomicInteger();
+    final AtomicInteger           pageAmount = new AtomicInteger();
+    final AtomicInteger           itemIndex  = new AtomicInteger();
+    final AtomicReference<String> itemState  = new AtomicReference<>("");
+    // State of every worker thread, by thread name
+    final Map<String, String>     workers    = new ConcurrentHashMap<>();
+
+    // Values of the last push, only accessed while holding the push lock
+    final Map<String, Object> pushed = new HashMap<>();
+    long lastSystemStats = 0;
+
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("status-reporter", true));
+
+    public StatusReporter(DatabaseClient databaseClient, long interval, long systemStatsInterval) {
+        this.databaseClient = databaseClient;
+        this.systemStatsInterval = systemStatsInterval;
+        this.scheduler.scheduleWithFixedDelay(this::push, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void setPageAmount(int amount) {
+        pageAmount.set(amount);
+    }
+
+    public void setPage(int index) {
+        pageIndex.set(index);
+    }
+
+    public void setItem(int index) {
+        itemIndex.set(index);
+    }
+
+    /**
+     * Sets the state of the current item, as well as the state of the calling worker thread
+     */
+    public void setState(String state) {
+        itemState.set(state);
+        workers.put(Thread.currentThread().getName(), state);
+    }
+
+    public void clearWorkers() {
+        workers.clear();
+    }
+
+    /**
+     * Writes the current values right away
+     */
+    public void flush() {
+        push();
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        push();
+    }
+
+    synchronized void push() {
+        try {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("fetch.page.amount", pageAmount.get());
+            values.put("fetch.page.index", pageIndex.get());
+            values.put("fetch.page.item.index", itemIndex.get());
+            values.put("fetch.page.item.state", itemState.get());
+            values.put("fetch.workers", new TreeMap<>(workers));
+
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (!Objects.equals(pushed.get(entry.getKey()), entry.getValue())) {
+                    databaseClient.updateStatus(entry.getKey(), entry.getValue());
+                    pushed.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            if (System.currentTimeMillis() - lastSystemStats >= systemStatsInterval) {
+                databaseClient.updateSystemStats("fetch.");
+                lastSystemStats = System.currentTimeMillis();
+            }
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.warn("Failed to push status", e);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.spiget.fetcher;
+
+/**
+ * Counts the resources in a row which are already stored and weren't updated, to stop the crawl once only known resources are left
+ */
+public class StopOnExisting {
+
+    static final int DISABLED = -1;
+
+    final int limit;
+    int count;
+
+    StopOnExisting(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @param stopOnExisting amount of existing resources in a row after which to stop, or -1
+     */
+    public static StopOnExisting forListing(int stopOnExisting, boolean inverted) {
+        // If we stop on inverted, it would stop immediately
+        return new StopOnExisting(inverted ? DISABLED : stopOnExisting);
+    }
+
+    /**
+     * Leased page ranges are mostly made of existing resources and always have to be crawled completely
+     */
+    public static StopOnExisting forRange() {
+        return new StopOnExisting(DISABLED);
+    }
+
+    /**
+     * @param existing whether the resource is stored and wasn't updated
+     * @return <code>true</code> if the crawl should stop after this resource
+     */
+    public boolean next(boolean existing) {
+        count = existing ? count + 1 : 0;
+        return limit != DISABLED && count > limit;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    StopOnExisting copy() {
+        StopOnExisting copy = new StopOnExisting(limit);
+        copy.count = count;
+        return copy;
+    }
+
+}
@@ -0,0 +1,230 @@
+package org.spiget.fetcher;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.Document;
+import org.influxdb.dto.Point;
+import org.spiget.data.UpdateRequest;
+import org.spiget.data.resource.Resource;
+import org.spiget.fetcher.database.Documents;
+import org.spiget.fetcher.util.NamedThreadFactory;
+import org.spiget.parser.ResourcePageParser;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.spiget.fetcher.SpigetFetcher.config;
+import static org.spiget.fetcher.SpigetFetcher.databaseClient;
+
+/**
+ * Processes resource update requests on a pool of workers.
+ * <p>
+ * Requests are claimed atomically in the database, so multiple workers (or fetcher instances) never process the same request.
+ * A claim expires after <code>resourceRequest.claimTimeout</code>, so requests claimed by a crashed process are picked up again.
+ * Requests are only deleted after the updated resource has been written.
+ */
+@Log4j2
+class UpdateRequestWorkers {
+
+    final SpigetFetcher fetcher;
+
+    final int  maxRequests  = config.get("resourceRequest.max").getAsInt();
+    final int  threads      = config.get("resourceRequest.threads").getAsInt();
+    final long claimTimeout = config.get("resourceRequest.claimTimeout").getAsLong();
+
+    final MongoCollection<Document> collection = databaseClient.db().getCollection(Documents.UPDATE_REQUESTS);
+    final ExecutorService           executor   = Executors.newFixedThreadPool(threads, new NamedThreadFactory("update-request", false));
+
+    final AtomicInteger        claimed   = new AtomicInteger();
+    final AtomicInteger        processed = new AtomicInteger();
+    // Finished requests, deleted once their resources have been written
+    final Queue<UpdateRequest> completed = new ConcurrentLinkedQueue<>();
+    // Requests which failed in this run, left for other processes or the next run
+    final Set<Integer>         released  = ConcurrentHashMap.newKeySet();
+
+    long start;
+
+    UpdateRequestWorkers(SpigetFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    void start() {
+        log.log(Level.INFO, "Starting " + threads + " update request workers");
+        start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(this::work);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for all workers to run out of requests and deletes the finished requests
+     */
+    void await() throws InterruptedException {
+        while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.debug("Waiting for update request workers (" + processed.get() + " processed)");
+        }
+        finish();
+
+        SpigetFetcher.metrics.write(Point
+                .measurement("update_requests")
+                .addField("count", processed.get())
+                .build());
+        log.log(Level.INFO, "Finished requested updates. Took " + (((double) System.currentTimeMillis() - start) / 1000 / 60) + " minutes to update " + processed.get() + " resources.");
+    }
+
+    void work() {
+        ResourcePageParser resourcePageParser = new ResourcePageParser();
+        int count;
+        while ((count = claimed.incrementAndGet()) <= maxRequests) {
+            UpdateRequest request;
+            try {
+                request = claim();
+            } catch (Exception e) {
+                Sentry.captureException(e);
+                log.log(Level.ERROR, "Failed to claim update request", e);
+                return;
+            }
+            if (request == null) {
+                return;
+            }
+            process(request, resourcePageParser);
+            processed.incrementAndGet();
+        }
+        if (count == maxRequests + 1) {
+            // Only the first worker to run over the limit
+            log.info("Max Resource Requests processed. Stopping.");
+        }
+    }
+
+    UpdateRequest claim() {
+        long now = System.currentTimeMillis();
+        Document document = collection.findOneAndUpdate(
+                Filters.and(
+                        Filters.gt("requestedId", 0),
+                        Filters.nin("requestedId", released),
+                        Filters.or(Filters.exists("claimedBy", false), Filters.lt("claimedAt", now - claimTimeout))),
+                Updates.combine(Updates.set("claimedBy", SpigetFetcher.nodeId), Updates.set("claimedAt", now)),
+                new FindOneAndUpdateOptions().sort(Sorts.ascending("_id")));
+        if (document == null) {
+            return null;
+        }
+        document.remove("_id");
+        document.remove("claimedBy");
+        document.remove("claimedAt");
+        return Documents.fromDocument(document, UpdateRequest.class);
+    }
+
+    void process(UpdateRequest request, ResourcePageParser resourcePageParser) {
+        if (fetcher.cycleResourceIds.contains(request.getRequestedId())) {
+            completed.add(request);
+            return;
+        }
+        boolean done = false;
+        try {
+            done = update(request, resourcePageParser);
+        } finally {
+            if (!done) {
+                release(request);
+            }
+        }
+    }
+
+    /**
+     * @return whether the request is done and can be deleted
+     */
+    boolean update(UpdateRequest request, ResourcePageParser resourcePageParser) {
+        Resource resource;
+        try {
+            resource = databaseClient.getResource(request.getRequestedId());
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Failed to query resource data for " + request.getRequestedId(), e);
+            return false;
+        }
+        boolean existed = resource != null;
+        if (resource == null) {
+            resource = new Resource(request.getRequestedId());
+        }
+        try {
+            resource = fetcher.updateResource(resource, resourcePageParser);
+            if (resource == null) {
+                if (request.isDelete()) {
+                    log.log(Level.INFO, "Deleting resource #" + request.getRequestedId() + " since it has likely been deleted.");
+                    databaseClient.deleteResource(request.getRequestedId());
+                }
+                databaseClient.deleteUpdateRequest(request);
+                return true;
+            }
+            fetcher.updateResourceExtras(resource, request.isVersions(), request.isUpdates(), request.isReviews(), true, true);
+
+            if (existed) {
+                log.info("Updating existing resource #" + resource.getId());
+            } else {
+                log.log(Level.INFO, "Handling resource update request for a resource that wasn't in the database already (" + request.getRequestedId() + ")");
+            }
+
+            if (existed) {
+                SpigetFetcher.writeBuffer.updateResource(resource);
+            } else {
+                SpigetFetcher.writeBuffer.insertResource(resource);
+            }
+            fetcher.markUpdated(resource.getId());
+            if (SpigetFetcher.crawlScheduler != null) {
+                SpigetFetcher.crawlScheduler.onRefreshed(resource.getId());
+            }
+
+            completed.add(request);
+            return true;
+        } catch (Throwable throwable) {
+            Sentry.captureException(throwable);
+            log.error("Unexpected exception while updating resource #" + request.getRequestedId(), throwable);
+            return false;
+        }
+    }
+
+    /**
+     * Gives up the claim of a request which couldn't be processed, so it's picked up again right away instead of after the claim timeout
+     */
+    void release(UpdateRequest request) {
+        released.add(request.getRequestedId());
+        try {
+            collection.updateOne(
+                    Filters.and(Filters.eq("requestedId", request.getRequestedId()), Filters.eq("claimedBy", SpigetFetcher.nodeId)),
+                    Updates.combine(Updates.unset("claimedBy"), Updates.unset("claimedAt")));
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Failed to release update request for " + request.getRequestedId(), e);
+        }
+    }
+
+    void finish() {
+        SpigetFetcher.writeBuffer.flush();
+        UpdateRequest request;
+        while ((request = completed.poll()) != null) {
+            databaseClient.deleteUpdateRequest(request);
+        }
+    }
+
+    /**
+     * Releases all requests claimed by this process, e.g. when shutting down before they were processed
+     */
+    static void releaseClaims() {
+        databaseClient.db().getCollection(Documents.UPDATE_REQUESTS).updateMany(
+                Filters.eq("claimedBy", SpigetFetcher.nodeId),
+                Updates.combine(Updates.unset("claimedBy"), Updates.unset("claimedAt")));
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.spiget.fetcher.database;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.spiget.client.json.JsonClient;
+import org.spiget.data.resource.ListedResource;
+
+/**
+ * Converts data objects to Mongo documents, using the same JSON mapping as the API
+ */
+public class Documents {
+
+	public static final String RESOURCES  = "resources";
+	public static final String AUTHORS    = "authors";
+	public static final String CATEGORIES = "categories";
+	public static final String VERSIONS   = "resource_versions";
+	public static final String UPDATES    = "resource_updates";
+	public static final String REVIEWS    = "resource_reviews";
+
+	public static final String UPDATE_REQUESTS = "update_requests";
+	public static final String RESOURCE_FILES  = "resource_files";
+	public static final String PAGE_LEASES     = "page_leases";
+	public static final String FETCH_NODES     = "fetch_nodes";
+	public static final String PENDING_PURGES  = "pending_purges";
+
+	// Stored in their own collections, the resource document doesn't embed them
+	static final String[] RESOURCE_LISTS = { "versions", "updates", "reviews" };
+
+	static final JsonWriterSettings RELAXED = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
+	private Documents() {
+	}
+
+	public static Document toDocument(Object value) {
+		return Document.parse(JsonClient.gson.toJson(value));
+	}
+
+	/**
+	 * Converts a resource without its versions, updates and reviews
+	 */
+	public static Document toResourceDocument(ListedResource resource) {
+		Document document = toDocument(resource);
+		for (String key : RESOURCE_LISTS) {
+			document.remove(key);
+		}
+		return document;
+	}
+
+	public static <T> T fromDocument(Document document, Class<T> type) {
+		return JsonClient.gson.fromJson(document.toJson(RELAXED), type);
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+
+import static org.spiget.fetcher.database.Documents.RESOURCE_FILES;
+
+/**
+ * Content hash & size of the resource files stored in B2, by file name (e.g. <code>1234.jar</code>)
+ */
+public class FileHashStore {
+
+	final MongoCollection<Document> collection;
+
+	public FileHashStore(MongoDatabase database) {
+		this.collection = database.getCollection(RESOURCE_FILES);
+	}
+
+	public StoredFile get(String name) {
+		Document document = collection.find(Filters.eq("_id", name)).first();
+		return document == null ? null : new StoredFile(document);
+	}
+
+	public void put(String name, String sha1, long size, String fileId) {
+		long now = System.currentTimeMillis();
+		collection.replaceOne(Filters.eq("_id", name), new Document("_id", name)
+				.append("sha1", sha1)
+				.append("size", size)
+				.append("fileId", fileId)
+				.append("uploaded", now)
+				.append("verified", now), new ReplaceOptions().upsert(true));
+	}
+
+	public void setVerified(String name) {
+		collection.updateOne(Filters.eq("_id", name), Updates.set("verified", System.currentTimeMillis()));
+	}
+
+	public static class StoredFile {
+		public final String sha1;
+		public final long   size;
+		public final String fileId;
+		// Last time the file was confirmed to exist in B2
+		public final long   verified;
+
+		StoredFile(Document document) {
+			this.sha1 = document.getString("sha1");
+			this.size = document.get("size", Number.class).longValue();
+			this.fileId = document.getString("fileId");
+			Number verified = document.get("verified", Number.class);
+			this.verified = verified == null ? 0 : verified.longValue();
+		}
+
+		public boolean matches(String sha1, long size) {
+			return this.size == size && this.sha1 != null && this.sha1.equals(sha1);
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.spiget.fetcher.database.Documents.FETCH_NODES;
+import static org.spiget.fetcher.database.Documents.PAGE_LEASES;
+
+/**
+ * Splits the resource listing into ranges of pages which fetchers lease from each other.
+ * <p>
+ * A lease expires unless its owner renews it, so the ranges of a fetcher which died are picked up by the others.
+ * Finished ranges are only claimed again once the cycle interval has passed.
+ */
+public class PageLeases {
+
+	final MongoCollection<Document> leases;
+	final MongoCollection<Document> nodes;
+	final String                    nodeId;
+	final long                      leaseTime;
+
+	public PageLeases(MongoDatabase database, String nodeId, long leaseTime) {
+		this.leases = database.getCollection(PAGE_LEASES);
+		this.nodes = database.getCollection(FETCH_NODES);
+		this.nodeId = nodeId;
+		this.leaseTime = leaseTime;
+	}
+
+	/**
+	 * Creates the ranges for the current amount of pages, keeping the state of existing ones
+	 */
+	public void ensureRanges(int pageAmount, int rangeSize) {
+		int ranges = (pageAmount + rangeSize - 1) / rangeSize;
+		List<WriteModel<Document>> writes = new ArrayList<>(ranges + 1);
+		for (int i = 0; i < ranges; i++) {
+			int from = i * rangeSize + 1;
+			int to = Math.min(pageAmount, from + rangeSize - 1);
+			writes.add(new UpdateOneModel<>(Filters.eq("_id", i), Updates.combine(
+					Updates.set("from", from),
+					Updates.set("to", to),
+					Updates.setOnInsert("finished", 0L),
+					Updates.setOnInsert("expires", 0L)), new UpdateOptions().upsert(true)));
+		}
+		writes.add(new DeleteManyModel<>(Filters.gte("_id", ranges)));
+		leases.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+	}
+
+	/**
+	 * Claims the range which has been waiting the longest.
+	 * Ranges which have been finished or attempted since the run started aren't claimed again, so every run ends.
+	 *
+	 * @param cycleInterval   minimum time between two crawls of the same range
+	 * @param leadingInterval minimum time between two crawls of the first range, which is where updated resources show up
+	 * @param runStart        start of the current run
+	 * @param attempted       ids of the ranges this fetcher already claimed in the current run
+	 * @return the claimed range, or <code>null</code> if there is nothing left to do in this run
+	 */
+	public Lease claim(long cycleInterval, long leadingInterval, long runStart, Collection<Integer> attempted) {
+		long now = System.currentTimeMillis();
+		Document document = leases.findOneAndUpdate(Filters.and(
+				Filters.lt("expires", now),
+				Filters.lt("finished", runStart),
+				Filters.nin("_id", attempted),
+				Filters.or(
+						Filters.lt("finished", now - cycleInterval),
+						Filters.and(Filters.eq("_id", 0), Filters.lt("finished", now - leadingInterval)))),
+				Updates.combine(Updates.set("owner", nodeId), Updates.set("expires", now + leaseTime)),
+				new FindOneAndUpdateOptions().sort(Sorts.ascending("finished")).returnDocument(ReturnDocument.AFTER));
+		return document == null ? null : new Lease(document);
+	}
+
+	/**
+	 * @return <code>false</code> if the lease has expired and was taken over by another fetcher
+	 */
+	public boolean renew(Lease lease) {
+		return leases.updateOne(owned(lease), Updates.set("expires", System.currentTimeMillis() + leaseTime)).getMatchedCount() > 0;
+	}
+
+	public void finish(Lease lease) {
+		leases.updateOne(owned(lease), Updates.combine(
+				Updates.set("finished", System.currentTimeMillis()),
+				Updates.set("expires", 0L)));
+	}
+
+	/**
+	 * Gives up the lease without finishing the range, so another fetcher can claim it right away
+	 */
+	public void release(Lease lease) {
+		leases.updateOne(owned(lease), Updates.set("expires", 0L));
+	}
+
+	public void heartbeat() {
+		nodes.updateOne(Filters.eq("_id", nodeId), Updates.set("seen", System.currentTimeMillis()), new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * @return the amount of fetchers (including this one) which sent a heartbeat within the lease time
+	 */
+	public int countLiveNodes() {
+		return (int) Math.max(1, nodes.countDocuments(Filters.gte("seen", System.currentTimeMillis() - leaseTime)));
+	}
+
+	public void removeNode() {
+		nodes.deleteOne(Filters.eq("_id", nodeId));
+	}
+
+	Bson owned(Lease lease) {
+		return Filters.and(Filters.eq("_id", lease.id), Filters.eq("owner", nodeId));
+	}
+
+	public static class Lease {
+		public final int id;
+		public final int from;
+		public final int to;
+
+		Lease(Document document) {
+			this.id = document.get("_id", Number.class).intValue();
+			this.from = document.get("from", Number.class).intValue();
+			this.to = document.get("to", Number.class).intValue();
+		}
+
+		@Override
+		public String toString() {
+			return "#" + id + " (pages " + from + "-" + to + ")";
+		}
+	}
+
+}
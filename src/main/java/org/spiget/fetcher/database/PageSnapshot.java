@@ -0,0 +1,141 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.spiget.data.resource.ListedResource;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.spiget.fetcher.database.Documents.AUTHORS;
+import static org.spiget.fetcher.database.Documents.RESOURCES;
+
+/**
+ * Stored state of all resources and authors listed on a single resource page, loaded with one query per collection
+ */
+public class PageSnapshot {
+
+	final Map<Integer, KnownResource> resources = new HashMap<>();
+	final Set<Integer>                authors   = new HashSet<>();
+
+	public static PageSnapshot load(MongoDatabase database, Collection<ListedResource> listedResources) {
+		PageSnapshot snapshot = new PageSnapshot();
+		if (listedResources.isEmpty()) {
+			return snapshot;
+		}
+
+		Set<Integer> resourceIds = new HashSet<>();
+		Set<Integer> authorIds = new HashSet<>();
+		for (ListedResource listedResource : listedResources) {
+			resourceIds.add(listedResource.getId());
+			authorIds.add(listedResource.getAuthor().getId());
+		}
+
+		for (Document document : database.getCollection(RESOURCES)
+				.find(Filters.in("_id", resourceIds))
+				.projection(Projections.include("updateDate", "version.name", "downloads", "rating"))) {
+			KnownResource resource = new KnownResource(document);
+			snapshot.resources.put(resource.id, resource);
+		}
+		for (Document document : database.getCollection(AUTHORS)
+				.find(Filters.in("_id", authorIds))
+				.projection(Projections.include("_id"))) {
+			snapshot.authors.add(((Number) document.get("_id")).intValue());
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @return the stored resource, or <code>null</code> if it's not in the database yet
+	 */
+	public KnownResource getResource(int id) {
+		return resources.get(id);
+	}
+
+	public Set<Integer> getAuthors() {
+		return authors;
+	}
+
+	/**
+	 * The stored fields of a resource which are needed to decide how to handle it
+	 */
+	public static class KnownResource {
+
+		final int    id;
+		final long   updateDate;
+		final String versionName;
+		final int    downloads;
+		final int    ratingCount;
+		final double ratingAverage;
+
+		KnownResource(Document document) {
+			this.id = ((Number) document.get("_id")).intValue();
+			this.updateDate = getNumber(document, "updateDate").longValue();
+			Document version = document.get("version", Document.class);
+			this.versionName = version != null ? version.getString("name") : null;
+			this.downloads = getNumber(document, "downloads").intValue();
+			Document rating = document.get("rating", Document.class);
+			this.ratingCount = rating != null ? getNumber(rating, "count").intValue() : 0;
+			this.ratingAverage = rating != null ? getNumber(rating, "average").doubleValue() : 0;
+		}
+
+		public KnownResource(ListedResource resource) {
+			this.id = resource.getId();
+			this.updateDate = resource.getUpdateDate();
+			this.versionName = resource.getVersion() != null ? resource.getVersion().getName() : null;
+			this.downloads = resource.getDownloads();
+			this.ratingCount = resource.getRating() != null ? resource.getRating().getCount() : 0;
+			this.ratingAverage = resource.getRating() != null ? resource.getRating().getAverage() : 0;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public long getUpdateDate() {
+			return updateDate;
+		}
+
+		public int getDownloads() {
+			return downloads;
+		}
+
+		/**
+		 * Compares the values shown on the resource list with the stored ones
+		 *
+		 * @return <code>true</code> if nothing which is visible on the resource list changed
+		 */
+		public boolean matches(ListedResource resource) {
+			return resource.getDownloads() == downloads && matchesExceptDownloads(resource);
+		}
+
+		/**
+		 * Like {@link #matches(ListedResource)}, but ignores the download count, which changes all the time on popular resources
+		 */
+		public boolean matchesExceptDownloads(ListedResource resource) {
+			if (resource.getUpdateDate() != updateDate) {
+				return false;
+			}
+			if (resource.getVersion() == null || !Objects.equals(resource.getVersion().getName(), versionName)) {
+				return false;
+			}
+			if (resource.getRating() == null) {
+				return ratingCount == 0;
+			}
+			return resource.getRating().getCount() == ratingCount && Math.abs(resource.getRating().getAverage() - ratingAverage) < 0.01;
+		}
+
+		static Number getNumber(Document document, String key) {
+			Object value = document.get(key);
+			return value instanceof Number ? (Number) value : 0;
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.spiget.fetcher.util.ConcurrentBitSet;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.spiget.fetcher.database.Documents.PENDING_PURGES;
+
+/**
+ * Resources whose caches still have to be purged, so they survive a restart.
+ * <p>
+ * Ids are collected in memory and only the ones added since the last {@link #save()} are written, one document per id and kind
+ * (<code>updated</code> for the API responses, or the file type for downloaded files).
+ */
+public class PendingPurges {
+
+	public static final String UPDATED = "updated";
+
+	final MongoCollection<Document> collection;
+
+	// Ids added since the last save, by kind
+	final Map<String, ConcurrentBitSet> unsaved = new ConcurrentHashMap<>();
+	// Value of "added" of the last save, unique per save
+	long lastSaved;
+
+	public PendingPurges(MongoDatabase database) {
+		this.collection = database.getCollection(PENDING_PURGES);
+	}
+
+	public void add(String kind, int id) {
+		unsaved.computeIfAbsent(kind, k -> new ConcurrentBitSet()).add(id);
+	}
+
+	/**
+	 * Writes the ids added since the last call
+	 *
+	 * @return the value of <code>added</code> of the written ids, everything up to it is stored, see {@link #removePurged(long)}
+	 */
+	public synchronized long save() {
+		// Two saves within the same millisecond must still be told apart
+		long now = Math.max(System.currentTimeMillis(), lastSaved + 1);
+		List<WriteModel<Document>> writes = new ArrayList<>();
+		for (Map.Entry<String, ConcurrentBitSet> entry : unsaved.entrySet()) {
+			String kind = entry.getKey();
+			entry.getValue().drain().stream().forEach(id -> writes.add(new UpdateOneModel<>(
+					Filters.eq("_id", kind + ":" + id),
+					Updates.combine(Updates.set("kind", kind), Updates.set("id", id), Updates.set("added", now)),
+					new UpdateOptions().upsert(true))));
+		}
+		if (writes.isEmpty()) {
+			return lastSaved;
+		}
+		collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+		return lastSaved = now;
+	}
+
+	/**
+	 * @return the stored ids, by kind
+	 */
+	public Map<String, BitSet> load() {
+		Map<String, BitSet> ids = new HashMap<>();
+		for (Document document : collection.find().batchSize(10000)) {
+			ids.computeIfAbsent(document.getString("kind"), k -> new BitSet()).set(document.get("id", Number.class).intValue());
+		}
+		return ids;
+	}
+
+	/**
+	 * Removes the ids which have been purged
+	 *
+	 * @param saved the value returned by the {@link #save()} before the purge
+	 */
+	public void removePurged(long saved) {
+		collection.deleteMany(Filters.lte("added", saved));
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.spiget.data.resource.ResourceReview;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.spiget.fetcher.database.Documents.RESOURCES;
+import static org.spiget.fetcher.database.Documents.REVIEWS;
+import static org.spiget.fetcher.database.Documents.toDocument;
+
+/**
+ * Review queries which only touch the fields they need, instead of loading and rewriting the whole resource
+ */
+public class ReviewStore {
+
+	final MongoDatabase database;
+
+	public ReviewStore(MongoDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * @return whether the review is already stored, using only the <code>_id</code> index
+	 */
+	public boolean isKnown(int reviewId) {
+		return database.getCollection(REVIEWS)
+				.find(Filters.eq("_id", reviewId))
+				.projection(Projections.include("_id"))
+				.first() != null;
+	}
+
+	/**
+	 * Stores the review and adds it to the resource's rating.
+	 * The rating is only updated if the review could be inserted, so a review which is already stored is never counted twice.
+	 * The rating is updated in a single atomic update (requires MongoDB 4.2+).
+	 *
+	 * @return <code>false</code> if the resource doesn't exist
+	 */
+	public boolean addReview(int resourceId, ResourceReview review) {
+		if (database.getCollection(RESOURCES)
+				.find(Filters.eq("_id", resourceId))
+				.projection(Projections.include("_id"))
+				.first() == null) {
+			return false;
+		}
+		Document document = toDocument(review);
+		document.put("_id", review.getId());
+		try {
+			database.getCollection(REVIEWS).insertOne(document);
+		} catch (MongoWriteException e) {
+			if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+				// Already stored, so it has been counted
+				return true;
+			}
+			throw e;
+		}
+
+		String count = "$rating.count";
+		String average = "$rating.average";
+		Document countOrZero = new Document("$ifNull", Arrays.asList(count, 0));
+		Document averageOrZero = new Document("$ifNull", Arrays.asList(average, 0));
+		Document newCount = new Document("$add", Arrays.asList(countOrZero, 1));
+		// average + (rating - average) / newCount, rounded to 1 decimal
+		Document newAverage = new Document("$round", Arrays.asList(
+				new Document("$add", Arrays.asList(averageOrZero,
+						new Document("$divide", Arrays.asList(
+								new Document("$subtract", Arrays.asList(review.getRating().getAverage(), averageOrZero)),
+								newCount)))),
+				1));
+
+		database.getCollection(RESOURCES).updateOne(Filters.eq("_id", resourceId), Collections.singletonList(new Document("$set", new Document()
+				.append("rating.count", newCount)
+				.append("rating.average", newAverage))));
+		return true;
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.spiget.fetcher.database.Documents.UPDATES;
+
+/**
+ * Looks up which updates of a resource are already stored, without loading their descriptions
+ */
+public class UpdateStore {
+
+	final MongoDatabase database;
+
+	public UpdateStore(MongoDatabase database) {
+		this.database = database;
+	}
+
+	public Map<Integer, KnownUpdate> getUpdates(int resourceId) {
+		Map<Integer, KnownUpdate> updates = new HashMap<>();
+		for (Document document : database.getCollection(UPDATES).aggregate(Arrays.asList(
+				Aggregates.match(Filters.eq("resource", resourceId)),
+				Aggregates.project(Projections.fields(
+						Projections.include("date", "likes", "likesChecked"),
+						Projections.computed("complete", new Document("$gt", Arrays.asList(new Document("$strLenCP", new Document("$ifNull", Arrays.asList("$description", ""))), 0)))))))) {
+			KnownUpdate update = new KnownUpdate(document);
+			updates.put(update.id, update);
+		}
+		return updates;
+	}
+
+	public static class KnownUpdate {
+		public final int     id;
+		public final long    date;
+		public final int     likes;
+		// Last time the likes were counted, 0 if unknown
+		public final long    likesChecked;
+		// Whether the description has been fetched
+		public final boolean complete;
+
+		KnownUpdate(Document document) {
+			this.id = document.get("_id", Number.class).intValue();
+			this.date = number(document, "date");
+			this.likes = (int) number(document, "likes");
+			this.likesChecked = number(document, "likesChecked");
+			this.complete = document.getBoolean("complete", false);
+		}
+
+		static long number(Document document, String key) {
+			Number number = document.get(key, Number.class);
+			return number == null ? 0 : number.longValue();
+		}
+
+		/**
+		 * Likes of recent updates are refreshed every <code>interval</code>, the interval doubles with every <code>halfAge</code> the update gets older
+		 */
+		public boolean isLikesDue(long now, long interval, long maxInterval, long halfAge) {
+			long age = Math.max(0, now - date * 1000);
+			double due = Math.min(maxInterval, interval * Math.pow(2, age / (double) halfAge));
+			return now - likesChecked >= due;
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+package org.spiget.fetcher.database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.spiget.data.author.ListedAuthor;
+import org.spiget.data.category.ListedCategory;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.data.resource.ResourceReview;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.resource.version.ResourceVersion;
+import org.spiget.fetcher.util.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.spiget.fetcher.database.Documents.*;
+
+/**
+ * Collects resource, author, category, version, update and review writes and sends them as one bulk write per collection.
+ * <p>
+ * The buffer is flushed once it holds <code>maxSize</code> writes, once the oldest write is older than <code>maxAge</code> milliseconds,
+ * and whenever {@link #flush()} is called explicitly (after each resource page and on shutdown).
+ */
+@Log4j2
+public class WriteBehindBuffer {
+
+	static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+	final MongoDatabase database;
+	final int           maxSize;
+	final long          maxAge;
+
+	// Pending writes by collection, in the order they were added
+	Map<String, List<WriteModel<Document>>> pending = new LinkedHashMap<>();
+	int  pendingCount = 0;
+	long oldest       = 0;
+
+	// Makes sure batches are written one after another
+	final Object flushLock = new Object();
+
+	final ScheduledExecutorService ageFlusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("write-behind-flusher", true));
+
+	public WriteBehindBuffer(MongoDatabase database, int maxSize, long maxAge) {
+		this.database = database;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		this.ageFlusher.scheduleWithFixedDelay(this::flushIfExpired, maxAge, Math.max(1, maxAge / 2), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Updates a stored resource, does nothing if it doesn't exist
+	 */
+	public void updateResource(ListedResource resource) {
+		set(RESOURCES, resource.getId(), toResourceDocument(resource), false);
+	}
+
+	public void insertResource(ListedResource resource) {
+		set(RESOURCES, resource.getId(), toResourceDocument(resource), true);
+	}
+
+	/**
+	 * Only updates the download count, for resources whose pages aren't fetched again
+	 */
+	public void setResourceDownloads(int resourceId, int downloads) {
+		add(RESOURCES, new UpdateOneModel<>(Filters.eq("_id", resourceId), new Document("$set", new Document("downloads", downloads))));
+	}
+
+	/**
+	 * Updates a stored author, does nothing if it doesn't exist
+	 */
+	public void updateAuthor(ListedAuthor author) {
+		set(AUTHORS, author.getId(), toDocument(author), false);
+	}
+
+	public void insertAuthor(ListedAuthor author) {
+		set(AUTHORS, author.getId(), toDocument(author), true);
+	}
+
+	/**
+	 * Inserts the author, but leaves an existing document untouched
+	 */
+	public void insertAuthorIfAbsent(ListedAuthor author) {
+		Document document = toDocument(author);
+		document.remove("_id");
+		add(AUTHORS, new UpdateOneModel<>(Filters.eq("_id", author.getId()), new Document("$setOnInsert", document), UPSERT));
+	}
+
+	public void updateOrInsertCategory(ListedCategory category) {
+		upsert(CATEGORIES, category.getId(), category);
+	}
+
+	public void updateOrInsertVersion(ResourceVersion version) {
+		upsert(VERSIONS, version.getId(), version);
+	}
+
+	public void updateOrInsertUpdate(ResourceUpdate update) {
+		upsert(UPDATES, update.getId(), update);
+	}
+
+	/**
+	 * Sets the like count of a stored update, and when it was counted
+	 */
+	public void setUpdateLikes(int updateId, int likes) {
+		add(UPDATES, new UpdateOneModel<>(Filters.eq("_id", updateId), new Document("$set", new Document("likes", likes).append("likesChecked", System.currentTimeMillis()))));
+	}
+
+	public void updateOrInsertReview(ResourceReview review) {
+		upsert(REVIEWS, review.getId(), review);
+	}
+
+	void upsert(String collection, int id, Object value) {
+		set(collection, id, toDocument(value), true);
+	}
+
+	void set(String collection, int id, Document document, boolean upsert) {
+		document.remove("_id");
+		add(collection, upsert
+				? new UpdateOneModel<>(Filters.eq("_id", id), new Document("$set", document), UPSERT)
+				: new UpdateOneModel<>(Filters.eq("_id", id), new Document("$set", document)));
+	}
+
+	void add(String collection, WriteModel<Document> model) {
+		boolean full;
+		synchronized (this) {
+			if (pendingCount == 0) {
+				oldest = System.currentTimeMillis();
+			}
+			pending.computeIfAbsent(collection, c -> new ArrayList<>()).add(model);
+			full = ++pendingCount >= maxSize;
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	void flushIfExpired() {
+		boolean expired;
+		synchronized (this) {
+			expired = pendingCount > 0 && System.currentTimeMillis() - oldest >= maxAge;
+		}
+		if (expired) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes all pending operations, blocking until they are done
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<String, List<WriteModel<Document>>> batch;
+			synchronized (this) {
+				if (pendingCount == 0) {
+					return;
+				}
+				batch = pending;
+				pending = new LinkedHashMap<>();
+				pendingCount = 0;
+			}
+
+			for (Map.Entry<String, List<WriteModel<Document>>> entry : batch.entrySet()) {
+				flush(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Writes in order, since a batch can contain several writes of the same document which depend on each other,
+	 * e.g. the like count of an update which is inserted earlier in the same batch.
+	 * A write which is rejected is skipped and the rest of the batch is written anyway,
+	 * if the database can't be reached, the batch is kept for the next flush.
+	 */
+	void flush(String collection, List<WriteModel<Document>> writes) {
+		while (!writes.isEmpty()) {
+			try {
+				BulkWriteResult result = database.getCollection(collection).bulkWrite(writes, new BulkWriteOptions().ordered(true));
+				log.debug("Flushed " + writes.size() + " writes to '" + collection + "' (" + result.getUpserts().size() + " inserted, " + result.getModifiedCount() + " modified)");
+				return;
+			} catch (MongoBulkWriteException e) {
+				Sentry.captureException(e);
+				if (e.getWriteErrors().isEmpty()) {
+					// Only the write concern failed, the writes themselves were applied
+					log.error("Failed to confirm " + writes.size() + " writes to '" + collection + "'", e);
+					return;
+				}
+				// An ordered write stops at the first error, everything before it has been written
+				BulkWriteError error = e.getWriteErrors().get(0);
+				log.error("Write #" + error.getIndex() + " of " + writes.size() + " to '" + collection + "' failed, skipping it: " + error.getMessage());
+				writes = writes.subList(error.getIndex() + 1, writes.size());
+			} catch (Exception e) {
+				Sentry.captureException(e);
+				log.error("Failed to flush " + writes.size() + " writes to '" + collection + "', retrying with the next flush", e);
+				requeue(collection, writes);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts the writes back in front of the ones which were added in the meantime
+	 */
+	synchronized void requeue(String collection, List<WriteModel<Document>> writes) {
+		List<WriteModel<Document>> requeued = new ArrayList<>(writes);
+		List<WriteModel<Document>> added = pending.get(collection);
+		if (added != null) {
+			requeued.addAll(added);
+		}
+		pending.put(collection, requeued);
+		if (pendingCount == 0) {
+			oldest = System.currentTimeMillis();
+		}
+		pendingCount += writes.size();
+	}
+
+	/**
+	 * Flushes the remaining writes and stops the age based flushing
+	 */
+	public void close() {
+		ageFlusher.shutdownNow();
+		flush();
+		synchronized (this) {
+			if (pendingCount > 0) {
+				log.error("Dropping " + pendingCount + " writes which couldn't be flushed");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.spiget.fetcher.ratelimit;
+
+import com.google.gson.JsonObject;
+import lombok.extern.log4j.Log4j2;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a separate {@link TokenBucket} for every upstream host.
+ * <p>
+ * Hosts configured in <code>ratelimit.hosts</code> use their own budget, all other hosts fall back to the rate derived from <code>request.delay</code>.
+ */
+@Log4j2
+public class HostRateLimiter {
+
+	final JsonObject hostConfig;
+	final double     defaultRate;
+	final double     increase;
+	final double     decrease;
+
+	final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+	volatile int shares = 1;
+
+	public HostRateLimiter(JsonObject config) {
+		this.hostConfig = config.getAsJsonObject("ratelimit.hosts");
+		this.defaultRate = 1000.0 / Math.max(1, config.get("request.delay").getAsLong());
+		this.increase = config.get("ratelimit.increase").getAsDouble();
+		this.decrease = config.get("ratelimit.decrease").getAsDouble();
+	}
+
+	public void acquire(String url) throws InterruptedException {
+		getBucket(url).acquire();
+	}
+
+	/**
+	 * @param code             response code of the request
+	 * @param retryAfterMillis value of the Retry-After header, or -1 if there was none
+	 */
+	public void onResponse(String url, int code, long retryAfterMillis) {
+		TokenBucket bucket = getBucket(url);
+		if (code == 429 || code == 503) {
+			bucket.onThrottled(decrease, retryAfterMillis);
+			log.warn("Throttled by " + getHost(url) + " (" + code + "), rate is now " + String.format("%.2f", bucket.getRate()) + "/s");
+		} else if (code > 0 && code < 400) {
+			bucket.onSuccess(increase);
+		}
+	}
+
+	public TokenBucket getBucket(String url) {
+		return buckets.computeIfAbsent(getHost(url), this::createBucket);
+	}
+
+	/**
+	 * @return a view of all buckets, by host
+	 */
+	public Map<String, TokenBucket> getBuckets() {
+		return Collections.unmodifiableMap(buckets);
+	}
+
+	/**
+	 * Splits the budget of every host between <code>nodes</code> fetchers
+	 */
+	public void setShares(int nodes) {
+		if (nodes != shares) {
+			log.info("Sharing the rate limits with " + (nodes - 1) + " other fetchers");
+		}
+		this.shares = nodes;
+		buckets.values().forEach(bucket -> bucket.setShares(nodes));
+	}
+
+	TokenBucket createBucket(String host) {
+		TokenBucket bucket = newBucket(host);
+		bucket.setShares(shares);
+		return bucket;
+	}
+
+	TokenBucket newBucket(String host) {
+		if (hostConfig != null && hostConfig.has(host)) {
+			JsonObject json = hostConfig.getAsJsonObject(host);
+			double rate = json.get("rate").getAsDouble();
+			return new TokenBucket(rate,
+					json.has("minRate") ? json.get("minRate").getAsDouble() : rate,
+					json.has("maxRate") ? json.get("maxRate").getAsDouble() : rate,
+					json.has("burst") ? json.get("burst").getAsInt() : 1);
+		}
+		return new TokenBucket(defaultRate, defaultRate, defaultRate, 1);
+	}
+
+	static String getHost(String url) {
+		try {
+			String host = URI.create(url).getHost();
+			return host != null ? host : "";
+		} catch (IllegalArgumentException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * @param header value of a Retry-After header
+	 * @return the delay in milliseconds, or -1 if it can't be parsed
+	 */
+	public static long parseRetryAfter(String header) {
+		if (header == null || header.isEmpty()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(header.trim()) * 1000L;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.spiget.fetcher.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket (implemented as GCRA) with an adjustable rate.
+ * <p>
+ * The rate is adapted using AIMD: every successful request increases it a little, every throttled request cuts it down.
+ */
+public class TokenBucket {
+
+	static final long NANOS_PER_SECOND  = TimeUnit.SECONDS.toNanos(1);
+	static final long DECREASE_COOLDOWN = TimeUnit.SECONDS.toNanos(1);
+
+	final double minRate;
+	final double maxRate;
+	final int    burst;
+
+	// Nanos between two tokens, i.e. 1/rate
+	final AtomicLong interval;
+	// Theoretical arrival time of the next request
+	final AtomicLong arrival      = new AtomicLong(System.nanoTime());
+	final AtomicLong lastDecrease = new AtomicLong(System.nanoTime() - DECREASE_COOLDOWN);
+	// Amount of fetchers sharing the budget of the host, each one only gets its part of the rate
+	volatile int shares = 1;
+
+	public TokenBucket(double rate, double minRate, double maxRate, int burst) {
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.burst = Math.max(1, burst);
+		this.interval = new AtomicLong(toInterval(clamp(rate)));
+	}
+
+	/**
+	 * Blocks until a token is available
+	 */
+	public void acquire() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			long interval = this.interval.get() * shares;
+			long arrival = this.arrival.get();
+			long allowedAt = arrival - interval * (burst - 1);
+			if (this.arrival.compareAndSet(arrival, Math.max(arrival, now) + interval)) {
+				long wait = allowedAt - now;
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Additive increase, adds roughly <code>increase</code> requests per second for every second of successful requests
+	 */
+	public void onSuccess(double increase) {
+		interval.updateAndGet(interval -> {
+			double rate = toRate(interval);
+			return toInterval(clamp(rate + increase / rate));
+		});
+	}
+
+	/**
+	 * Multiplicative decrease, also blocks the bucket for the <code>Retry-After</code> duration if there is one
+	 *
+	 * @param decrease         factor to multiply the rate with
+	 * @param retryAfterMillis value of the Retry-After header, or -1
+	 */
+	public void onThrottled(double decrease, long retryAfterMillis) {
+		long now = System.nanoTime();
+		if (retryAfterMillis > 0) {
+			long until = now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+			arrival.accumulateAndGet(until, Math::max);
+		}
+		// Responses of concurrent requests usually arrive at the same time, only count them once
+		long last = lastDecrease.get();
+		if (now - last >= DECREASE_COOLDOWN && lastDecrease.compareAndSet(last, now)) {
+			interval.updateAndGet(interval -> toInterval(clamp(toRate(interval) * decrease)));
+		}
+	}
+
+	public void setShares(int shares) {
+		this.shares = Math.max(1, shares);
+	}
+
+	/**
+	 * @return the current rate in requests per second
+	 */
+	public double getRate() {
+		return toRate(interval.get());
+	}
+
+	double clamp(double rate) {
+		return Math.max(minRate, Math.min(maxRate, rate));
+	}
+
+	static long toInterval(double rate) {
+		return (long) (NANOS_PER_SECOND / rate);
+	}
+
+	static double toRate(long interval) {
+		return (double) NANOS_PER_SECOND / interval;
+	}
+
+}
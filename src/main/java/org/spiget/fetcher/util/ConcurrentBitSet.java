@@ -0,0 +1,125 @@
+package org.spiget.fetcher.util;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe set of non-negative ints, one bit per value.
+ * <p>
+ * Bits are set with CAS, only growing the backing array takes a lock.
+ */
+public class ConcurrentBitSet {
+
+	volatile AtomicLongArray words;
+
+	public ConcurrentBitSet() {
+		this(1 << 17);
+	}
+
+	public ConcurrentBitSet(int initialBits) {
+		this.words = new AtomicLongArray(Math.max(1, (initialBits + 63) >>> 6));
+	}
+
+	/**
+	 * @return <code>true</code> if the value wasn't in the set yet
+	 */
+	public boolean add(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value: " + value);
+		}
+		int index = value >>> 6;
+		long bit = 1L << value;
+		AtomicLongArray current = ensureCapacity(index);
+		boolean added = setBit(current, index, bit);
+		// The array might have been replaced while the bit was being set, make sure it's in the new one too
+		while (current != words) {
+			current = words;
+			setBit(current, index, bit);
+		}
+		return added;
+	}
+
+	public void addAll(int[] values) {
+		for (int value : values) {
+			add(value);
+		}
+	}
+
+	public boolean contains(int value) {
+		AtomicLongArray current = words;
+		int index = value >>> 6;
+		return value >= 0 && index < current.length() && (current.get(index) & (1L << value)) != 0;
+	}
+
+	public boolean isEmpty() {
+		AtomicLongArray current = words;
+		for (int i = 0; i < current.length(); i++) {
+			if (current.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return copy of the current values
+	 */
+	public BitSet snapshot() {
+		AtomicLongArray current = words;
+		long[] copy = new long[current.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = current.get(i);
+		}
+		return BitSet.valueOf(copy);
+	}
+
+	/**
+	 * Removes all values and returns them, values added concurrently end up in the result, the set, or both
+	 */
+	public BitSet drain() {
+		AtomicLongArray current = words;
+		long[] drained = new long[current.length()];
+		for (int i = 0; i < drained.length; i++) {
+			drained[i] = current.getAndSet(i, 0);
+		}
+		return BitSet.valueOf(drained);
+	}
+
+	static boolean setBit(AtomicLongArray array, int index, long bit) {
+		long word;
+		do {
+			word = array.get(index);
+			if ((word & bit) != 0) {
+				return false;
+			}
+		} while (!array.compareAndSet(index, word, word | bit));
+		return true;
+	}
+
+	AtomicLongArray ensureCapacity(int index) {
+		AtomicLongArray current = words;
+		if (index < current.length()) {
+			return current;
+		}
+		synchronized (this) {
+			current = words;
+			if (index < current.length()) {
+				return current;
+			}
+			AtomicLongArray grown = new AtomicLongArray(Math.max(index + 1, current.length() * 2));
+			for (int i = 0; i < current.length(); i++) {
+				grown.set(i, current.get(i));
+			}
+			words = grown;
+			// Pick up bits which were set in the old array during the copy, later ones are set again by add()
+			for (int i = 0; i < current.length(); i++) {
+				long word = current.get(i);
+				if (word != 0) {
+					grown.getAndAccumulate(i, word, (a, b) -> a | b);
+				}
+			}
+			return grown;
+		}
+	}
+
+}
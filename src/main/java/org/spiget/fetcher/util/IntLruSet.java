@@ -0,0 +1,115 @@
+package org.spiget.fetcher.util;
+
+/**
+ * Bounded set of ints without boxing.
+ * <p>
+ * Once full, adding evicts an entry which hasn't been accessed recently (CLOCK approximation of LRU).
+ * Entries are indexed by an open addressing hash table with linear probing.
+ */
+public class IntLruSet {
+
+	final int       capacity;
+	final int[]     entries;
+	final boolean[] referenced;
+	int size;
+	int hand;
+
+	// Entry index + 1 by hash, 0 = empty
+	final int[] table;
+	final int   mask;
+
+	public IntLruSet(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.entries = new int[capacity];
+		this.referenced = new boolean[capacity];
+		// At most half full
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		this.table = new int[tableSize];
+		this.mask = tableSize - 1;
+	}
+
+	public synchronized boolean contains(int key) {
+		int position = find(key);
+		if (position < 0) {
+			return false;
+		}
+		referenced[table[position] - 1] = true;
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the key wasn't in the set yet
+	 */
+	public synchronized boolean add(int key) {
+		int position = find(key);
+		if (position >= 0) {
+			referenced[table[position] - 1] = true;
+			return false;
+		}
+
+		int entry;
+		if (size < capacity) {
+			entry = size++;
+		} else {
+			// Give recently accessed entries a second chance
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % capacity;
+			}
+			entry = hand;
+			hand = (hand + 1) % capacity;
+			remove(find(entries[entry]));
+		}
+		entries[entry] = key;
+		referenced[entry] = false;
+
+		position = hash(key) & mask;
+		while (table[position] != 0) {
+			position = (position + 1) & mask;
+		}
+		table[position] = entry + 1;
+		return true;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	int find(int key) {
+		for (int position = hash(key) & mask; ; position = (position + 1) & mask) {
+			int entry = table[position];
+			if (entry == 0) {
+				return -1;
+			}
+			if (entries[entry - 1] == key) {
+				return position;
+			}
+		}
+	}
+
+	// Backward shift deletion, so lookups never stop at a gap before their entry
+	void remove(int position) {
+		table[position] = 0;
+		for (int next = (position + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int ideal = hash(entries[table[next] - 1]) & mask;
+			if (((next - ideal) & mask) >= ((next - position) & mask)) {
+				table[position] = table[next];
+				table[next] = 0;
+				position = next;
+			}
+		}
+	}
+
+	static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
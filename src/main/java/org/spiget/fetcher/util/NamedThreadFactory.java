@@ -0,0 +1,27 @@
+package org.spiget.fetcher.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads <code>prefix-1</code>, <code>prefix-2</code>, ... so they can be told apart in logs and the worker status
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	final String        prefix;
+	final boolean       daemon;
+	final AtomicInteger counter = new AtomicInteger();
+
+	public NamedThreadFactory(String prefix, boolean daemon) {
+		this.prefix = prefix;
+		this.daemon = daemon;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+}
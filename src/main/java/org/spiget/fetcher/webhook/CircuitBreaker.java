@@ -0,0 +1,59 @@
+package org.spiget.fetcher.webhook;
+
+/**
+ * Stops deliveries to a host after repeated failures, then lets a single probe through once the open time has passed.
+ */
+public class CircuitBreaker {
+
+	final int  failureThreshold;
+	final long openTime;
+
+	int     failures;
+	long    openedAt;
+	boolean probing;
+
+	public CircuitBreaker(int failureThreshold, long openTime) {
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	public synchronized boolean allowRequest() {
+		if (failures < failureThreshold) {
+			return true;
+		}
+		if (probing || System.currentTimeMillis() - openedAt < openTime) {
+			return false;
+		}
+		// Half-open
+		probing = true;
+		return true;
+	}
+
+	public synchronized void onSuccess() {
+		failures = 0;
+		probing = false;
+	}
+
+	public synchronized void onFailure() {
+		failures++;
+		probing = false;
+		if (failures >= failureThreshold) {
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the millis until a probe is let through again, 0 if that's already the case
+	 */
+	public synchronized long remainingOpenTime() {
+		if (failures < failureThreshold) {
+			return 0;
+		}
+		return Math.max(0, openedAt + openTime - System.currentTimeMillis());
+	}
+
+	public synchronized boolean isOpen() {
+		return failures >= failureThreshold;
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.spiget.fetcher.webhook;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded request body of an event, shared by all deliveries of it.
+ */
+public class Payload {
+
+	// UTF-8 JSON, must not be modified
+	final byte[] bytes;
+	// Compressed body, or null if it's too small to be worth it
+	final byte[] gzipped;
+
+	Payload(byte[] bytes, byte[] gzipped) {
+		this.bytes = bytes;
+		this.gzipped = gzipped;
+	}
+
+	/**
+	 * @param gzipThreshold minimum size to also compress the body, or a negative value to never compress
+	 */
+	public static Payload encode(JsonElement json, int gzipThreshold) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+			writer.setLenient(true);
+			write(writer, json);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		byte[] bytes = out.toByteArray();
+		return new Payload(bytes, gzipThreshold >= 0 && bytes.length >= gzipThreshold ? gzip(bytes) : null);
+	}
+
+	/**
+	 * Joins already encoded payloads into a JSON array
+	 */
+	public static Payload array(Collection<Payload> payloads, int gzipThreshold) {
+		int length = 1 + payloads.size();
+		for (Payload payload : payloads) {
+			length += payload.bytes.length;
+		}
+		byte[] bytes = new byte[Math.max(2, length)];
+		int position = 0;
+		bytes[position++] = '[';
+		for (Payload payload : payloads) {
+			if (position > 1) {
+				bytes[position++] = ',';
+			}
+			System.arraycopy(payload.bytes, 0, bytes, position, payload.bytes.length);
+			position += payload.bytes.length;
+		}
+		bytes[position] = ']';
+		return new Payload(bytes, gzipThreshold >= 0 && bytes.length >= gzipThreshold ? gzip(bytes) : null);
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	static void write(JsonWriter writer, JsonElement element) throws IOException {
+		if (element == null || element.isJsonNull()) {
+			writer.nullValue();
+		} else if (element.isJsonPrimitive()) {
+			JsonPrimitive primitive = element.getAsJsonPrimitive();
+			if (primitive.isNumber()) {
+				writer.value(primitive.getAsNumber());
+			} else if (primitive.isBoolean()) {
+				writer.value(primitive.getAsBoolean());
+			} else {
+				writer.value(primitive.getAsString());
+			}
+		} else if (element.isJsonArray()) {
+			writer.beginArray();
+			for (JsonElement child : (JsonArray) element) {
+				write(writer, child);
+			}
+			writer.endArray();
+		} else {
+			writer.beginObject();
+			for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+				// Stored documents use Mongo's _id, the API exposes it as id
+				writer.name("_id".equals(entry.getKey()) ? "id" : entry.getKey());
+				write(writer, entry.getValue());
+			}
+			writer.endObject();
+		}
+	}
+
+	static byte[] gzip(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+}
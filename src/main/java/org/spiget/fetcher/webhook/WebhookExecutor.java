@@ -1,75 +1,383 @@
 package org.spiget.fetcher.webhook;
 
-import com.google.gson.JsonObject;
 import io.sentry.Sentry;
 import lombok.extern.log4j.Log4j2;
 import org.apache.logging.log4j.Level;
+import org.influxdb.dto.Point;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.spiget.data.webhook.Webhook;
 import org.spiget.data.webhook.event.WebhookEvent;
 import org.spiget.fetcher.SpigetFetcher;
+import org.spiget.fetcher.util.NamedThreadFactory;
 
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Delivers webhook events asynchronously.
+ * <p>
+ * Every endpoint has its own bounded queue which is worked off one delivery at a time, so a slow subscriber only delays its own events.
+ * Failed deliveries are retried with a jittered exponential backoff before they count towards the fail threshold,
+ * and hosts which keep failing are skipped for a while by a {@link CircuitBreaker}. Deliveries to such a host wait until the breaker lets requests through again,
+ * without using up their retries.
+ * <p>
+ * Deliveries are counted from the moment they're queued until their final result is handled, see {@link #awaitCompletion(long)}.
+ * <p>
+ * Subscribers are cached per event for <code>webhook.subscriberCacheTime</code>, and their fail status is written periodically instead of after every delivery.
+ * <p>
+ * Webhooks listed in <code>webhook.batch.webhooks</code> receive the events of a short window as a single JSON array instead.
+ */
 @Log4j2
 public class WebhookExecutor {
 
 	final String startTimestamp = String.valueOf(System.currentTimeMillis());
 
-	final int      failThreshold = SpigetFetcher.config.get("webhook.failThreshold").getAsInt();
-	final Executor postExecutor  = Executors.newFixedThreadPool(SpigetFetcher.config.get("webhook.postThreads").getAsInt());
+	final int      failThreshold  = SpigetFetcher.config.get("webhook.failThreshold").getAsInt();
+	final int      queueSize      = SpigetFetcher.config.get("webhook.queueSize").getAsInt();
+	final int      maxRetries     = SpigetFetcher.config.get("webhook.retries").getAsInt();
+	final long     retryDelay     = SpigetFetcher.config.get("webhook.retryDelay").getAsLong();
+	final long     retryMaxDelay  = SpigetFetcher.config.get("webhook.retryMaxDelay").getAsLong();
+	final Duration requestTimeout = Duration.ofMillis(SpigetFetcher.config.get("webhook.requestTimeout").getAsLong());
+	final int      breakerFailures = SpigetFetcher.config.get("webhook.breaker.failures").getAsInt();
+	final long     breakerOpenTime = SpigetFetcher.config.get("webhook.breaker.openTime").getAsLong();
+	final long     subscriberCacheTime = SpigetFetcher.config.get("webhook.subscriberCacheTime").getAsLong();
+	final int      gzipThreshold  = SpigetFetcher.config.get("webhook.gzipThreshold").getAsInt();
+	final long     batchWindow    = SpigetFetcher.config.get("webhook.batch.window").getAsLong();
+	final int      batchMaxSize   = SpigetFetcher.config.get("webhook.batch.maxSize").getAsInt();
+	final Set<String> batchWebhooks = new HashSet<>();
 
-	// Keeps track of the amount of webhooks to call
-	public int pendingCalls = 0;
+	final Executor                 postExecutor   = Executors.newFixedThreadPool(SpigetFetcher.config.get("webhook.postThreads").getAsInt(), new NamedThreadFactory("webhook", true));
+	final ScheduledExecutorService scheduler      = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("webhook-scheduler", true));
+	final HttpClient               httpClient;
+
+	final Map<String, Endpoint>       endpoints = new ConcurrentHashMap<>();
+	final Map<String, CircuitBreaker> breakers  = new ConcurrentHashMap<>();
+
+	final Map<String, Subscribers> subscribers = new ConcurrentHashMap<>();
+	// Single instance per webhook id, so the fail counters are shared by all events
+	final Map<String, Webhook>     webhooks    = new ConcurrentHashMap<>();
+	// Webhooks with a status change which hasn't been written yet
+	final Map<String, Webhook>     dirty       = new ConcurrentHashMap<>();
+	// Open batches by webhook id & event
+	final Map<String, Batch>       batches     = new HashMap<>();
+
+	// Deliveries which are queued, in flight or waiting for a retry
+	final AtomicInteger pendingCalls = new AtomicInteger();
+	final Object        idleLock     = new Object();
+
+	final LongAdder deliveredCalls = new LongAdder();
+	final LongAdder deliveryTime   = new LongAdder();
 
 	public WebhookExecutor() {
+		// The client keeps connections alive and pools them per host
+		httpClient = HttpClient.newBuilder()
+				.executor(postExecutor)
+				.connectTimeout(Duration.ofMillis(SpigetFetcher.config.get("webhook.connectTimeout").getAsLong()))
+				// Like the previous HttpURLConnection, follow redirects unless they downgrade to http
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build();
+
+		SpigetFetcher.config.getAsJsonArray("webhook.batch.webhooks").forEach(e -> batchWebhooks.add(e.getAsString()));
+
+		long statusInterval = SpigetFetcher.config.get("webhook.statusFlushInterval").getAsLong();
+		scheduler.scheduleWithFixedDelay(this::flushStatus, statusInterval, statusInterval, TimeUnit.MILLISECONDS);
 	}
 
 	public void callEvent(@NotNull WebhookEvent event) {
-		Set<Webhook> webhooks = SpigetFetcher.databaseClient.getWebhooks(event.name);
+		callEvent(event, null);
+	}
+
+	/**
+	 * @param collapseKey events with the same key replace each other within a batch, e.g. multiple updates of a resource
+	 */
+	public void callEvent(@NotNull WebhookEvent event, @Nullable String collapseKey) {
+		Collection<Webhook> webhooks = getSubscribers(event.name);
 		if (webhooks.isEmpty()) {
 			log.info("No webhooks for '" + event.name + "'");
-		} else {
-			log.info("Calling " + webhooks.size() + " webhooks for '" + event.name + "'");
+			return;
 		}
-		final JsonObject eventJson = event.toJson();
+		log.info("Calling " + webhooks.size() + " webhooks for '" + event.name + "'");
+		// Encoded once, all deliveries send the same bytes
+		final Payload payload = Payload.encode(event.toJson(), gzipThreshold);
 		for (Webhook webhook : webhooks) {
-			postExecutor.execute(() -> {
-				pendingCalls++;
-
-				log.debug("Calling '" + webhook.url + "'");
-				int result = postData(webhook.id, webhook.url, event.name, eventJson);
-				webhook.failStatus = result;
-
-				if (result != 0) {
-					log.warn("Connection failed: " + result);
-					webhook.failedConnections++;
-				} else {
-					//Reset fails
-					webhook.failedConnections = 0;
+			if (batchWebhooks.contains(webhook.id)) {
+				addToBatch(webhook, event.name, collapseKey, payload);
+				continue;
+			}
+			pendingCalls.incrementAndGet();
+			offer(new Delivery(webhook, event.name, payload, 0));
+		}
+	}
+
+	void offer(Delivery delivery) {
+		if (!endpoints.computeIfAbsent(delivery.webhook.url, Endpoint::new).offer(delivery)) {
+			release();
+		}
+	}
+
+	void addToBatch(Webhook webhook, String eventType, @Nullable String collapseKey, Payload payload) {
+		String key = webhook.id + "/" + eventType;
+		Batch full = null;
+		synchronized (batches) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				batches.put(key, batch = new Batch(webhook, eventType));
+				// The whole batch counts as a single pending call
+				pendingCalls.incrementAndGet();
+				Batch scheduled = batch;
+				scheduler.schedule(() -> flushBatch(key, scheduled), batchWindow, TimeUnit.MILLISECONDS);
+			}
+			batch.add(collapseKey, payload);
+			if (batch.payloads.size() >= batchMaxSize) {
+				batches.remove(key);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			sendBatch(full);
+		}
+	}
+
+	void flushBatch(String key, Batch batch) {
+		synchronized (batches) {
+			if (!batches.remove(key, batch)) {
+				// Already sent because it was full
+				return;
+			}
+		}
+		sendBatch(batch);
+	}
+
+	void sendBatch(Batch batch) {
+		log.debug("Sending batch of " + batch.payloads.size() + " '" + batch.eventType + "' events to '" + batch.webhook.url + "'");
+		offer(new Delivery(batch.webhook, batch.eventType, Payload.array(batch.payloads.values(), gzipThreshold), batch.payloads.size()));
+	}
+
+	Collection<Webhook> getSubscribers(String eventName) {
+		Subscribers cached = subscribers.get(eventName);
+		if (cached != null && System.currentTimeMillis() - cached.loaded < subscriberCacheTime) {
+			return cached.webhooks;
+		}
+		List<Webhook> list = new ArrayList<>();
+		Set<String> ids = new HashSet<>();
+		for (Webhook webhook : SpigetFetcher.databaseClient.getWebhooks(eventName)) {
+			Webhook known = webhooks.putIfAbsent(webhook.id, webhook);
+			if (known != null) {
+				// Keep the known instance, its counters may be newer than the stored ones, but take over edits of the webhook
+				known.url = webhook.url;
+				known.events = webhook.events;
+				webhook = known;
+			}
+			list.add(webhook);
+			ids.add(webhook.id);
+		}
+		Subscribers previous = subscribers.put(eventName, new Subscribers(list));
+		if (previous != null) {
+			// Forget webhooks which were deleted or unsubscribed, unless another event still uses them
+			for (Webhook webhook : previous.webhooks) {
+				if (!ids.contains(webhook.id) && !isSubscribed(webhook.id)) {
+					webhooks.remove(webhook.id);
 				}
+			}
+		}
+		return list;
+	}
 
-				if (result == -2) {// No reason to keep trying -> remove
-					SpigetFetcher.databaseClient.deleteWebhook(webhook);
-				} else if (webhook.failedConnections > failThreshold) {// Threshold exceeded -> remove
-					SpigetFetcher.databaseClient.deleteWebhook(webhook);
-				} else {
-					SpigetFetcher.databaseClient.updateWebhookStatus(webhook);
+	boolean isSubscribed(String webhookId) {
+		for (Subscribers cached : subscribers.values()) {
+			for (Webhook webhook : cached.webhooks) {
+				if (webhook.id.equals(webhookId)) {
+					return true;
 				}
+			}
+		}
+		return false;
+	}
 
-				pendingCalls--;
-			});
+	/**
+	 * Writes the status of all webhooks which changed since the last flush
+	 */
+	public void flushStatus() {
+		for (String id : dirty.keySet()) {
+			Webhook webhook = dirty.remove(id);
+			if (webhook == null) {
+				continue;
+			}
+			try {
+				SpigetFetcher.databaseClient.updateWebhookStatus(webhook);
+			} catch (Exception e) {
+				Sentry.captureException(e);
+				log.log(Level.ERROR, "Failed to update webhook status", e);
+			}
 		}
 	}
 
+	public int getPendingCalls() {
+		return pendingCalls.get();
+	}
+
 	public boolean isFinished() {
-		return this.pendingCalls <= 0;
+		return pendingCalls.get() <= 0;
+	}
+
+	/**
+	 * Blocks until all queued deliveries are done, or the timeout expires
+	 *
+	 * @return <code>true</code> if there are no pending deliveries left
+	 */
+	public boolean awaitCompletion(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			synchronized (idleLock) {
+				while (pendingCalls.get() > 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					idleLock.wait(remaining);
+				}
+			}
+		} finally {
+			flushStatus();
+		}
+		return true;
+	}
+
+	void release() {
+		if (pendingCalls.decrementAndGet() <= 0) {
+			synchronized (idleLock) {
+				idleLock.notifyAll();
+			}
+		}
+	}
+
+	public void writeMetrics() {
+		long delivered = deliveredCalls.sumThenReset();
+		long time = deliveryTime.sumThenReset();
+		SpigetFetcher.metrics.write(Point
+				.measurement("webhook_deliveries")
+				.addField("pending", pendingCalls.get())
+				.addField("delivered", delivered)
+				.addField("latency", delivered == 0 ? 0 : time / delivered)
+				.build());
+	}
+
+	CompletableFuture<Integer> deliver(Delivery delivery) {
+		log.debug("Calling '" + delivery.webhook.url + "'");
+
+		CompletableFuture<Integer> result = new CompletableFuture<>();
+		attempt(delivery, 0, result);
+		return result.whenComplete((code, e) -> {
+			try {
+				handleResult(delivery.webhook, code == null ? -1 : code);
+			} catch (Exception e1) {
+				Sentry.captureException(e1);
+				log.log(Level.ERROR, "Failed to update webhook status", e1);
+			}
+			deliveredCalls.increment();
+			deliveryTime.add(System.currentTimeMillis() - delivery.queued);
+			release();
+		});
+	}
+
+	void attempt(Delivery delivery, int attempt, CompletableFuture<Integer> result) {
+		CircuitBreaker breaker = breaker(delivery.webhook.url);
+		if (!breaker.allowRequest()) {
+			if (!webhooks.containsKey(delivery.webhook.id)) {
+				// Deleted in the meantime
+				result.complete(-3);
+				return;
+			}
+			// Another delivery may be probing the host, so wait at least the retry delay
+			long delay = Math.max(retryDelay, breaker.remainingOpenTime());
+			delay += ThreadLocalRandom.current().nextLong(retryDelay / 2 + 1);
+			log.debug("Circuit of '" + delivery.webhook.url + "' is open, delaying delivery by " + delay + "ms");
+			scheduler.schedule(() -> attempt(delivery, attempt, result), delay, TimeUnit.MILLISECONDS);
+			return;
+		}
+		postData(delivery.webhook.id, delivery.webhook.url, delivery.eventType, delivery.payload, delivery.batchSize).whenComplete((code, e) -> {
+			int resultCode = code == null ? -1 : code;
+			if (resultCode == -1 || resultCode == 429 || resultCode >= 500) {
+				breaker.onFailure();
+				if (attempt < maxRetries) {
+					long delay = Math.min(retryMaxDelay, retryDelay << attempt);
+					delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+					log.debug("Retrying '" + delivery.webhook.url + "' in " + delay + "ms");
+					scheduler.schedule(() -> attempt(delivery, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+					return;
+				}
+			} else if (resultCode != -2) {
+				// The host answered, even if it didn't accept the event
+				breaker.onSuccess();
+			}
+			result.complete(resultCode);
+		});
+	}
+
+	void handleResult(Webhook webhook, int result) {
+		if (result == -3) {
+			// Not attempted, the webhook was deleted while the delivery was waiting
+			log.debug("Skipped '" + webhook.url + "', webhook was deleted");
+			return;
+		}
+		webhook.failStatus = result;
+
+		if (result != 0) {
+			log.warn("Connection failed: " + result);
+			webhook.failedConnections++;
+		} else {
+			//Reset fails
+			webhook.failedConnections = 0;
+		}
+
+		if (result == -2) {// No reason to keep trying -> remove
+			deleteWebhook(webhook);
+		} else if (webhook.failedConnections > failThreshold) {// Threshold exceeded -> remove
+			deleteWebhook(webhook);
+		} else {
+			dirty.put(webhook.id, webhook);
+		}
+	}
+
+	void deleteWebhook(Webhook webhook) {
+		dirty.remove(webhook.id);
+		webhooks.remove(webhook.id);
+		// Reload the subscribers, so the deleted webhook isn't called again
+		subscribers.clear();
+		SpigetFetcher.databaseClient.deleteWebhook(webhook);
+	}
+
+	CircuitBreaker breaker(String url) {
+		String host;
+		try {
+			host = URI.create(url).getHost();
+		} catch (IllegalArgumentException e) {
+			host = null;
+		}
+		return breakers.computeIfAbsent(host == null ? url : host, h -> new CircuitBreaker(breakerFailures, breakerOpenTime));
 	}
 
 	/*
@@ -77,43 +385,134 @@ public class WebhookExecutor {
 	 * >0 = connection failed (Response code)
 	 * -1 = unknown error
 	 * -2 = connection impossible (e.g. invalid URL)
+	 * -3 = not attempted (webhook deleted while the delivery was waiting)
 	 */
-	int postData(@NotNull String webhookId, @NotNull String url, @NotNull String eventType, @NotNull JsonObject data) {
+	CompletableFuture<Integer> postData(@NotNull String webhookId, @NotNull String url, @NotNull String eventType, @NotNull Payload payload, int batchSize) {
+		HttpRequest request;
 		try {
-			String dataString = data.toString();
-			dataString = dataString.replace("\"_id\":", "\"id\":");
-			int dataLength = dataString.getBytes("UTF-8").length;
-
-			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-			connection.setDoOutput(true);
-			connection.setRequestMethod("POST");
-			connection.setRequestProperty("X-Spiget-Event", eventType);
-			connection.setRequestProperty("X-Spiget-Time", startTimestamp);
-			connection.setRequestProperty("X-Spiget-HookId", webhookId);
-			connection.setRequestProperty("User-Agent", "Spiget-Webhook/2.0");
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestProperty("Content-Length", String.valueOf(dataLength));
-			connection.setFixedLengthStreamingMode(dataLength);
-
-			PrintWriter out = new PrintWriter(connection.getOutputStream());
-			out.write(dataString);
-			out.flush();
-			out.close();
-
-			if (connection.getResponseCode() != 200) {
-				log.warn("Connection to " + url + " failed (Code: " + connection.getResponseCode() + ", '" + connection.getResponseMessage() + "')");
-				return connection.getResponseCode();
+			HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+					.timeout(requestTimeout)
+					.header("X-Spiget-Event", eventType)
+					.header("X-Spiget-Time", startTimestamp)
+					.header("X-Spiget-HookId", webhookId)
+					.header("User-Agent", "Spiget-Webhook/2.0")
+					.header("Content-Type", "application/json");
+			if (batchSize > 0) {
+				builder.header("X-Spiget-Batch-Size", String.valueOf(batchSize));
 			}
-
-			return 0;
-		} catch (MalformedURLException e) {
+			if (payload.gzipped != null) {
+				builder.header("Content-Encoding", "gzip")
+						.POST(HttpRequest.BodyPublishers.ofByteArray(payload.gzipped));
+			} else {
+				builder.POST(HttpRequest.BodyPublishers.ofByteArray(payload.bytes));
+			}
+			request = builder.build();
+		} catch (IllegalArgumentException e) {
 			Sentry.captureException(e);
 			log.warn("Malformed URL: " + url);
-			return -2;
-		} catch (Throwable e) {
-			Sentry.captureException(e);
-			log.log(Level.ERROR, "Unknown exception", e);
-			return -1;
+			return CompletableFuture.completedFuture(-2);
+		}
+
+		return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, e) -> {
+			if (e != null) {
+				log.log(Level.WARN, "Connection to " + url + " failed", e);
+				return -1;
+			}
+			if (response.statusCode() != 200) {
+				log.warn("Connection to " + url + " failed (Code: " + response.statusCode() + ")");
+				return response.statusCode();
+			}
+			return 0;
+		});
+	}
+
+	static class Subscribers {
+		final List<Webhook> webhooks;
+		final long          loaded = System.currentTimeMillis();
+
+		Subscribers(List<Webhook> webhooks) {
+			this.webhooks = webhooks;
+		}
+	}
+
+	static class Delivery {
+		final Webhook    webhook;
+		final String     eventType;
+		final Payload    payload;
+		// Amount of events in a batch, 0 for a single event
+		final int        batchSize;
+		final long       queued = System.currentTimeMillis();
+
+		Delivery(Webhook webhook, String eventType, Payload payload, int batchSize) {
+			this.webhook = webhook;
+			this.eventType = eventType;
+			this.payload = payload;
+			this.batchSize = batchSize;
+		}
+	}
+
+	static class Batch {
+		final Webhook              webhook;
+		final String               eventType;
+		final Map<Object, Payload> payloads = new LinkedHashMap<>();
+
+		Batch(Webhook webhook, String eventType) {
+			this.webhook = webhook;
+			this.eventType = eventType;
+		}
+
+		void add(@Nullable String collapseKey, Payload payload) {
+			if (collapseKey == null) {
+				payloads.put(new Object(), payload);
+			} else {
+				// Only the latest event is kept, at the position of the latest one
+				payloads.remove(collapseKey);
+				payloads.put(collapseKey, payload);
+			}
+		}
+	}
+
+	/**
+	 * Queue of a single webhook url, delivering one event at a time
+	 */
+	class Endpoint {
+		final String          url;
+		final Deque<Delivery> queue = new ArrayDeque<>();
+		boolean busy;
+
+		Endpoint(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * @return <code>false</code> if the queue is full and the delivery was dropped
+		 */
+		boolean offer(Delivery delivery) {
+			synchronized (this) {
+				if (queue.size() >= queueSize) {
+					log.warn("Queue for '" + url + "' is full, dropping '" + delivery.eventType + "' event");
+					return false;
+				}
+				queue.add(delivery);
+				if (busy) {
+					return true;
+				}
+				busy = true;
+			}
+			postExecutor.execute(this::next);
+			return true;
+		}
+
+		void next() {
+			Delivery delivery;
+			synchronized (this) {
+				delivery = queue.poll();
+				if (delivery == null) {
+					busy = false;
+					return;
+				}
+			}
+			deliver(delivery).whenCompleteAsync((code, e) -> next(), postExecutor);
 		}
 	}
 
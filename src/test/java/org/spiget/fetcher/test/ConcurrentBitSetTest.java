@@ -0,0 +1,49 @@
+package org.spiget.fetcher.test;
+
+import org.junit.Test;
+import org.spiget.fetcher.util.ConcurrentBitSet;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentBitSetTest {
+
+	@Test
+	public void drainTest() {
+		ConcurrentBitSet set = new ConcurrentBitSet(64);
+		assertTrue(set.add(3));
+		assertFalse(set.add(3));
+		// Grows the backing array
+		assertTrue(set.add(100000));
+		assertTrue(set.contains(3));
+		assertTrue(set.contains(100000));
+		assertFalse(set.contains(4));
+
+		BitSet drained = set.drain();
+		assertEquals(2, drained.cardinality());
+		assertTrue(drained.get(100000));
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void concurrentGrowTest() throws InterruptedException {
+		ConcurrentBitSet set = new ConcurrentBitSet(64);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int t = 0; t < 4; t++) {
+			int offset = t;
+			executor.execute(() -> {
+				for (int i = offset; i < 200000; i += 4) {
+					set.add(i);
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(200000, set.snapshot().cardinality());
+	}
+
+}
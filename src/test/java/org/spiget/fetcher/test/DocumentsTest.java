@@ -0,0 +1,34 @@
+package org.spiget.fetcher.test;
+
+import org.bson.Document;
+import org.junit.Test;
+import org.spiget.data.resource.Resource;
+import org.spiget.fetcher.database.Documents;
+
+import static org.junit.Assert.*;
+
+public class DocumentsTest {
+
+	@Test
+	public void resourceRoundTripTest() {
+		Resource resource = new Resource(1234);
+		resource.setName("Test Resource");
+		resource.setDownloads(42);
+		resource.setUpdateDate(1500000000L);
+
+		Document document = Documents.toResourceDocument(resource);
+		// Same shape as the documents of the database client: id as the document id, versions etc. in their own collections
+		assertEquals(1234, ((Number) document.get("_id")).intValue());
+		assertFalse(document.containsKey("id"));
+		assertFalse(document.containsKey("versions"));
+		assertFalse(document.containsKey("updates"));
+		assertFalse(document.containsKey("reviews"));
+
+		Resource read = Documents.fromDocument(document, Resource.class);
+		assertEquals(resource.getId(), read.getId());
+		assertEquals(resource.getName(), read.getName());
+		assertEquals(resource.getDownloads(), read.getDownloads());
+		assertEquals(resource.getUpdateDate(), read.getUpdateDate());
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.spiget.fetcher.test;
+
+import org.junit.Test;
+import org.spiget.fetcher.util.IntLruSet;
+
+import static org.junit.Assert.*;
+
+public class IntLruSetTest {
+
+	@Test
+	public void addContainsTest() {
+		IntLruSet set = new IntLruSet(100);
+		assertTrue(set.add(1234));
+		assertFalse(set.add(1234));
+		assertTrue(set.contains(1234));
+		assertFalse(set.contains(4321));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	public void evictionTest() {
+		IntLruSet set = new IntLruSet(3);
+		set.add(1);
+		set.add(2);
+		set.add(3);
+		// 1 was used again, so 2 is evicted instead
+		assertTrue(set.contains(1));
+		set.add(4);
+		assertEquals(3, set.size());
+		assertTrue(set.contains(1));
+		assertFalse(set.contains(2));
+		assertTrue(set.contains(3));
+		assertTrue(set.contains(4));
+	}
+
+	@Test
+	public void churnTest() {
+		IntLruSet set = new IntLruSet(64);
+		for (int i = 0; i < 100000; i++) {
+			set.add(i * 31);
+			// The latest keys are always there
+			assertTrue(set.contains(i * 31));
+			if (i > 0) {
+				assertTrue(set.contains((i - 1) * 31));
+			}
+		}
+		assertEquals(64, set.size());
+	}
+
+}
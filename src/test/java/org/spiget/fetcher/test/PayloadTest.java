@@ -0,0 +1,30 @@
+package org.spiget.fetcher.test;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import org.spiget.fetcher.webhook.Payload;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PayloadTest {
+
+	@Test
+	public void idMappingTest() {
+		String json = "{\"_id\":1,\"name\":\"Test \\\"_id\\\": ü\",\"author\":{\"_id\":2},\"versions\":[{\"_id\":3}]}";
+		Payload payload = Payload.encode(new JsonParser().parse(json), -1);
+		assertEquals("{\"id\":1,\"name\":\"Test \\\"_id\\\": ü\",\"author\":{\"id\":2},\"versions\":[{\"id\":3}]}", new String(payload.getBytes(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void arrayTest() {
+		Payload first = Payload.encode(new JsonParser().parse("{\"_id\":1}"), -1);
+		Payload second = Payload.encode(new JsonParser().parse("{\"_id\":2}"), -1);
+		assertEquals("[{\"id\":1},{\"id\":2}]", new String(Payload.array(Arrays.asList(first, second), -1).getBytes(), StandardCharsets.UTF_8));
+		assertEquals("[]", new String(Payload.array(Collections.emptyList(), -1).getBytes(), StandardCharsets.UTF_8));
+	}
+
+}
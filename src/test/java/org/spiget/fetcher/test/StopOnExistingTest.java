@@ -0,0 +1,36 @@
+package org.spiget.fetcher.test;
+
+import org.junit.Test;
+import org.spiget.fetcher.StopOnExisting;
+
+import static org.junit.Assert.*;
+
+public class StopOnExistingTest {
+
+	@Test
+	public void storedRangeTest() {
+		// A leased range where every resource is already stored has to be crawled until its end
+		StopOnExisting stop = StopOnExisting.forRange();
+		for (int i = 0; i < 10 * 20; i++) {
+			assertFalse(stop.next(true));
+		}
+		assertEquals(200, stop.getCount());
+	}
+
+	@Test
+	public void listingTest() {
+		StopOnExisting stop = StopOnExisting.forListing(2, false);
+		assertFalse(stop.next(true));
+		assertFalse(stop.next(true));
+		// An update resets the count
+		assertFalse(stop.next(false));
+		assertFalse(stop.next(true));
+		assertFalse(stop.next(true));
+		assertTrue(stop.next(true));
+
+		assertFalse(StopOnExisting.forListing(-1, false).next(true));
+		assertFalse(StopOnExisting.forListing(0, true).next(true));
+		assertTrue(StopOnExisting.forListing(0, false).next(true));
+	}
+
+}
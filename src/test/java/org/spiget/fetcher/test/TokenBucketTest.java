@@ -0,0 +1,41 @@
+package org.spiget.fetcher.test;
+
+import org.junit.Test;
+import org.spiget.fetcher.ratelimit.TokenBucket;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+	@Test
+	public void aimdTest() {
+		TokenBucket bucket = new TokenBucket(2, 0.5, 4, 1);
+		assertEquals(2, bucket.getRate(), 0.01);
+
+		bucket.onThrottled(0.5, -1);
+		assertEquals(1, bucket.getRate(), 0.01);
+
+		// Throttled responses right after each other only count once
+		bucket.onThrottled(0.5, -1);
+		assertEquals(1, bucket.getRate(), 0.01);
+
+		for (int i = 0; i < 1000; i++) {
+			bucket.onSuccess(0.1);
+		}
+		assertTrue(bucket.getRate() > 1);
+		assertEquals(4, bucket.getRate(), 0.01);
+	}
+
+	@Test
+	public void acquireTest() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(20, 20, 20, 2);
+		long start = System.nanoTime();
+		for (int i = 0; i < 6; i++) {
+			bucket.acquire();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		// 2 requests are allowed immediately, the other 4 are 50ms apart
+		assertTrue("took " + millis + "ms", millis >= 180);
+	}
+
+}